@@ -0,0 +1,89 @@
+package DNA_in_bacteria_Benchmarks;
+
+import DNA_in_bacteria_Tools.LabelObjects;
+import DNA_in_bacteria_Tools.Tools;
+import java.util.concurrent.TimeUnit;
+import mcib3d.geom2.Object3DInt;
+import mcib3d.geom2.Objects3DIntPopulation;
+import mcib3d.geom2.measurements.MeasureCentroid;
+import mcib3d.image3d.ImageHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Scaling of DNA to bacterium assignment with the number of bacteria:
+ * label image lookup on runs of pixels (Tools.dnaBactLink) vs. previous bacteria x DNA nested loop on populations
+ * @author Orion-CIRB
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DnaBactLinkBenchmark {
+    
+    @Param({"100", "1000", "4000"})
+    public int nbBacteria;
+    
+    @Param({"2"})
+    public int dnaPerBact;
+    
+    private final Tools tools = new Tools();
+    private ImageHandler bactLabels;
+    private ImageHandler dnaLabels;
+    private LabelObjects bacts;
+    private LabelObjects dnas;
+    private Objects3DIntPopulation bactPop;
+    private Objects3DIntPopulation dnaPop;
+    
+    
+    @Setup(Level.Trial)
+    public void createImages() {
+        bactLabels = SyntheticLabels.bacteria(nbBacteria);
+        dnaLabels = SyntheticLabels.dna(nbBacteria, dnaPerBact);
+    }
+    
+    
+    // Link modifies DNA objects, so objects are built again before each call
+    @Setup(Level.Invocation)
+    public void createPopulations() {
+        bacts = new LabelObjects(bactLabels.getImagePlus().getProcessor());
+        dnas = new LabelObjects(dnaLabels.getImagePlus().getProcessor());
+        bactPop = new Objects3DIntPopulation(bactLabels);
+        dnaPop = new Objects3DIntPopulation(dnaLabels);
+    }
+    
+    
+    @Benchmark
+    public LabelObjects labelImageLookup() {
+        tools.dnaBactLink(bacts, dnas);
+        return(dnas);
+    }
+    
+    
+    @Benchmark
+    public Objects3DIntPopulation nestedLoop() {
+        for (Object3DInt bact : bactPop.getObjects3DInt()) {
+            for (Object3DInt dna : dnaPop.getObjects3DInt()) {
+                MeasureCentroid dnaCenter = new MeasureCentroid(dna);
+                if (bact.contains(dnaCenter.getCentroidRoundedAsVoxelInt()))
+                   dna.setIdObject(bact.getLabel()); 
+            }
+        }
+        dnaPop.getObjects3DInt().removeIf(p -> p.getIdObject() == 0);
+        dnaPop.resetLabels();
+        return(dnaPop);
+    }
+}
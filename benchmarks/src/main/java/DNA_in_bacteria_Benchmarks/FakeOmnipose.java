@@ -0,0 +1,57 @@
+package DNA_in_bacteria_Benchmarks;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+
+/**
+ * Deterministic stand-in for Omnipose: threshold at mean + k x standard deviation,
+ * then 4-connected components labelled in raster order
+ * With k = 0, same labelling as the stub Omnipose worker. Stages after segmentation run on realistic masks without Python.
+ * @author Orion-CIRB
+ */
+public class FakeOmnipose {
+
+    public static ImagePlus segment(ImagePlus img, double k) {
+        ImageProcessor ip = img.getProcessor();
+        int width = ip.getWidth();
+        int height = ip.getHeight();
+        int len = width*height;
+
+        double sum = 0, sum2 = 0;
+        for (int i = 0; i < len; i++) {
+            double v = ip.getf(i);
+            sum += v;
+            sum2 += v*v;
+        }
+        double mean = sum/len;
+        double threshold = mean + k*Math.sqrt(Math.max(0, sum2/len - mean*mean));
+
+        short[] labels = new short[len];
+        int[] queue = new int[len];
+        int label = 0;
+        for (int i = 0; i < len; i++) {
+            if (labels[i] != 0 || ip.getf(i) <= threshold)
+                continue;
+            label++;
+            labels[i] = (short) label;
+            int head = 0, tail = 0;
+            queue[tail++] = i;
+            while (head < tail) {
+                int p = queue[head++];
+                int x = p % width;
+                int[] neighbors = {x > 0 ? p-1 : -1, x < width-1 ? p+1 : -1, p-width, p+width};
+                for (int n : neighbors) {
+                    if (n >= 0 && n < len && labels[n] == 0 && ip.getf(n) > threshold) {
+                        labels[n] = (short) label;
+                        queue[tail++] = n;
+                    }
+                }
+            }
+        }
+        ImagePlus mask = new ImagePlus(img.getShortTitle() + "-cellpose", new ShortProcessor(width, height, labels, null));
+        mask.setCalibration(img.getCalibration());
+        return(mask);
+    }
+}
@@ -0,0 +1,143 @@
+package DNA_in_bacteria_Benchmarks;
+
+import DNA_in_bacteria_Tools.ColumnarResultsSink;
+import DNA_in_bacteria_Tools.Frame;
+import DNA_in_bacteria_Tools.FrameResults;
+import DNA_in_bacteria_Tools.Journal;
+import DNA_in_bacteria_Tools.OrderedResults;
+import DNA_in_bacteria_Tools.ResultsSink;
+import DNA_in_bacteria_Tools.TsvResultsSink;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Time to write a synthetic results table of one million rows:
+ * buffered results files with checkpoints vs. previous string concatenation with a flush per bacterium
+ * @author Orion-CIRB
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ResultsWriterBenchmark {
+
+    @Param({"1000000"})
+    public int nbRows;
+
+    @Param({"500"})
+    public int rowsPerFrame;
+
+    private final ArrayList<Frame> frames = new ArrayList<>();
+    private final ArrayList<FrameResults> rows = new ArrayList<>();
+    private File dir;
+
+
+    @Setup(Level.Trial)
+    public void createRows() throws IOException {
+        dir = Files.createTempDirectory("resultsBenchmark").toFile();
+        Random random = new Random(42);
+        for (int t = 0; t*rowsPerFrame < nbRows; t++) {
+            frames.add(new Frame("synthetic.tif", 0, 0, "synthetic", t));
+            FrameResults frameRows = new FrameResults("synthetic", t+1, rowsPerFrame);
+            // Half of the bacteria have 2 DNA, other ones have none
+            for (int b = 1; frameRows.size < rowsPerFrame; b++) {
+                double surf = 1 + 3*random.nextDouble();
+                double length = 2 + 4*random.nextDouble();
+                if (b % 2 == 0) {
+                    frameRows.add(b, surf, length);
+                } else {
+                    for (int d = 1; d <= 2; d++)
+                        frameRows.add(b, surf, length, 2, d, 0.5*random.nextDouble(), 1000*random.nextDouble(), random.nextDouble());
+                }
+            }
+            rows.add(frameRows);
+        }
+    }
+
+
+    @TearDown(Level.Trial)
+    public void deleteFiles() {
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+
+    private long write(ResultsSink... sinks) throws IOException {
+        List<ResultsSink> sinksList = Arrays.asList(sinks);
+        Journal journal = new Journal(new File(dir, "journal.txt").toString(), false);
+        OrderedResults results = new OrderedResults(sinksList, journal, null, 4096*1024, 100000);
+        for (int i = 0; i < frames.size(); i++)
+            results.write(frames.get(i), rows.get(i));
+        results.fileDone(0);
+        for (ResultsSink sink : sinks)
+            sink.close();
+        journal.close();
+        return(sinks[0].position());
+    }
+
+
+    @Benchmark
+    public long tsv() throws IOException {
+        return(write(new TsvResultsSink(new File(dir, "results.xls"), false)));
+    }
+
+
+    @Benchmark
+    public long columnar() throws IOException {
+        return(write(new ColumnarResultsSink(new File(dir, "results.bin"), false)));
+    }
+
+
+    @Benchmark
+    public long tsvAndColumnar() throws IOException {
+        return(write(new TsvResultsSink(new File(dir, "results.xls"), false), new ColumnarResultsSink(new File(dir, "results.bin"), false)));
+    }
+
+
+    @Benchmark
+    public long concatenationFlushPerBacterium() throws IOException {
+        File file = new File(dir, "results.xls");
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file, false))) {
+            writer.write(String.join("\t", FrameResults.COLUMNS) + "\n");
+            writer.flush();
+            for (FrameResults r : rows) {
+                for (int i = 0; i < r.size; i++) {
+                    if (r.dnaNb[i] == 0)
+                        writer.write(r.imgName+"\t"+r.time+"\t"+r.bactLabel[i]+"\t"+r.bactSurf[i]+"\t"+r.bactLength[i]+"\t"+r.dnaNb[i]+"\n");
+                    else
+                        writer.write(r.imgName+"\t"+r.time+"\t"+r.bactLabel[i]+"\t"+r.bactSurf[i]+"\t"+r.bactLength[i]+"\t"+r.dnaNb[i]+"\t"
+                                +r.dnaLabel[i]+"\t"+r.dnaSurf[i]+"\t"+r.dnaInt[i]+"\t"+r.dnaDist[i]+"\n");
+                    // Flush after the last row of a bacterium
+                    if (i == r.size-1 || r.bactLabel[i+1] != r.bactLabel[i])
+                        writer.flush();
+                }
+            }
+        }
+        return(file.length());
+    }
+}
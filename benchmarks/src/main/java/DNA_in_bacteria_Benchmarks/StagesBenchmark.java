@@ -0,0 +1,142 @@
+package DNA_in_bacteria_Benchmarks;
+
+import DNA_in_bacteria_Tools.FrameResults;
+import DNA_in_bacteria_Tools.LabelObjects;
+import DNA_in_bacteria_Tools.StreamingZProjector;
+import DNA_in_bacteria_Tools.Tools;
+import ij.ImagePlus;
+import ij.plugin.ZProjector;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import loci.formats.FormatException;
+import loci.plugins.util.ImageProcessorReader;
+import mcib3d.image3d.ImageHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Each stage of a frame on its own, on synthetic stacks segmented by FakeOmnipose:
+ * Z projection while reading the planes of a TIFF file, size and border filtering, measurements and result images
+ * DNA to bacterium assignment is in DnaBactLinkBenchmark.
+ * @author Orion-CIRB
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StagesBenchmark {
+    
+    @Param({"500", "2000"})
+    public int nbBacteria;
+    
+    // Fraction of the field of view grid holding a bacterium
+    @Param({"0.25", "1"})
+    public double occupancy;
+    
+    @Param({"2"})
+    public int dnaPerBact;
+    
+    @Param({"15"})
+    public int nbSlices;
+    
+    private final Tools tools = new Tools();
+    private final StreamingZProjector projector = new StreamingZProjector(ZProjector.AVG_METHOD);
+    private ImageProcessorReader bactReader;
+    private ImagePlus bactProj;
+    private ImagePlus dnaProj;
+    private ImagePlus bactMask;
+    private ImagePlus dnaMask;
+    private LabelObjects bacts;
+    private LabelObjects dnas;
+    private File outDir;
+    
+    
+    @Setup(Level.Trial)
+    public void createImages() throws Exception {
+        Properties params = new Properties();
+        params.setProperty("pixelSize", "0.2");
+        params.setProperty("minDnaSurface", "0.1");
+        params.setProperty("useReaderMemo", "false");
+        tools.parameters(params, new String[] {"0", "1"});
+        outDir = Files.createTempDirectory("stagesBenchmark").toFile();
+        
+        // Stacks read from files as in the pipeline, one plane at a time
+        ImageHandler bactLabels = SyntheticLabels.bacteria(nbBacteria, occupancy);
+        ImageHandler dnaLabels = SyntheticLabels.dna(nbBacteria, dnaPerBact, occupancy);
+        bactReader = tools.openReader(SyntheticStacks.save(SyntheticStacks.stack(bactLabels, nbSlices), outDir).getPath());
+        bactProj = projector.project(bactReader, 0, 0, tools.cal);
+        try (ImageProcessorReader dnaReader = tools.openReader(SyntheticStacks.save(SyntheticStacks.stack(dnaLabels, nbSlices), outDir).getPath())) {
+            dnaProj = projector.project(dnaReader, 0, 0, tools.cal);
+        }
+        bactMask = FakeOmnipose.segment(bactProj, 1);
+        dnaMask = FakeOmnipose.segment(dnaProj, 1);
+        
+        bacts = tools.filterDetections(bactMask, tools.minBactSurface, tools.maxBactSurface, true);
+        dnas = tools.filterDetections(dnaMask, tools.minDnaSurface, tools.maxDnaSurface, false);
+        tools.dnaBactLink(bacts, dnas);
+    }
+    
+    
+    @TearDown(Level.Trial)
+    public void deleteFiles() throws IOException {
+        bactReader.close();
+        for (File f : outDir.listFiles())
+            f.delete();
+        outDir.delete();
+    }
+    
+    
+    // Reading, decoding and projecting the planes of a channel, as in the open stage
+    @Benchmark
+    public ImagePlus zProjection() throws FormatException, IOException {
+        return(projector.project(bactReader, 0, 0, tools.cal));
+    }
+    
+    
+    // Cost of the Omnipose stand-in, not of the plugin
+    @Benchmark
+    public ImagePlus fakeSegmentation() {
+        return(FakeOmnipose.segment(bactProj, 1));
+    }
+    
+    
+    @Benchmark
+    public LabelObjects filterBacteria() {
+        return(tools.filterDetections(bactMask, tools.minBactSurface, tools.maxBactSurface, true));
+    }
+    
+    
+    @Benchmark
+    public LabelObjects filterDna() {
+        return(tools.filterDetections(dnaMask, tools.minDnaSurface, tools.maxDnaSurface, false));
+    }
+    
+    
+    @Benchmark
+    public FrameResults measure() {
+        return(tools.getResults(bacts, dnas, dnaProj, "synthetic", 1));
+    }
+    
+    
+    @Benchmark
+    public void drawResults() throws IOException {
+        tools.drawResults(bactProj, dnaProj, bacts, dnas, "synthetic", outDir + File.separator);
+    }
+}
@@ -0,0 +1,107 @@
+package DNA_in_bacteria_Benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import mcib3d.image3d.ImageHandler;
+import mcib3d.image3d.ImageShort;
+
+
+/**
+ * Deterministic synthetic label images
+ * Rod-shaped bacteria are laid on a grid, with DNA spots inside them and one DNA spot outside each of them
+ * Occupancy is the fraction of grid cells holding a bacterium, occupied cells are drawn with a fixed seed.
+ * @author Orion-CIRB
+ */
+public class SyntheticLabels {
+    
+    // Bacterium size and grid spacing (pixels)
+    public static final int BACT_LENGTH = 16;
+    public static final int BACT_WIDTH = 6;
+    public static final int GRID_STEP = 20;
+    
+    
+    /**
+     * Image size needed to hold a number of bacteria
+     */
+    public static int imageSize(int nbBacteria) {
+        return(imageSize(nbBacteria, 1));
+    }
+    
+    
+    public static int imageSize(int nbBacteria, double occupancy) {
+        return((int) Math.ceil(Math.sqrt(nbBacteria / occupancy)) * GRID_STEP);
+    }
+    
+    
+    /**
+     * Grid cells holding a bacterium, in bacteria order
+     */
+    private static int[] cells(int nbBacteria, double occupancy) {
+        int gridSize = imageSize(nbBacteria, occupancy) / GRID_STEP;
+        List<Integer> cells = new ArrayList<>();
+        for (int c = 0; c < gridSize*gridSize; c++)
+            cells.add(c);
+        if (occupancy < 1)
+            Collections.shuffle(cells, new Random(42));
+        cells = cells.subList(0, nbBacteria);
+        Collections.sort(cells);
+        return(cells.stream().mapToInt(Integer::intValue).toArray());
+    }
+    
+    
+    /**
+     * Label image of bacteria, labelled from 1 to nbBacteria
+     */
+    public static ImageHandler bacteria(int nbBacteria) {
+        return(bacteria(nbBacteria, 1));
+    }
+    
+    
+    public static ImageHandler bacteria(int nbBacteria, double occupancy) {
+        int size = imageSize(nbBacteria, occupancy);
+        int gridSize = size / GRID_STEP;
+        int[] cells = cells(nbBacteria, occupancy);
+        ImageShort img = new ImageShort("bacteria", size, size, 1);
+        for (int b = 0; b < nbBacteria; b++) {
+            int x0 = (cells[b] % gridSize) * GRID_STEP + 2;
+            int y0 = (cells[b] / gridSize) * GRID_STEP + 2;
+            fill(img, x0, y0, BACT_LENGTH, BACT_WIDTH, b + 1);
+        }
+        return(img);
+    }
+    
+    
+    /**
+     * Label image of 2x2 DNA spots: dnaPerBact spots in each bacterium, and one spot outside each bacterium
+     */
+    public static ImageHandler dna(int nbBacteria, int dnaPerBact) {
+        return(dna(nbBacteria, dnaPerBact, 1));
+    }
+    
+    
+    public static ImageHandler dna(int nbBacteria, int dnaPerBact, double occupancy) {
+        int size = imageSize(nbBacteria, occupancy);
+        int gridSize = size / GRID_STEP;
+        int[] cells = cells(nbBacteria, occupancy);
+        ImageShort img = new ImageShort("dna", size, size, 1);
+        int label = 1;
+        for (int b = 0; b < nbBacteria; b++) {
+            int x0 = (cells[b] % gridSize) * GRID_STEP + 2;
+            int y0 = (cells[b] / gridSize) * GRID_STEP + 2;
+            int spacing = (BACT_LENGTH - 2) / Math.max(1, dnaPerBact);
+            for (int d = 0; d < dnaPerBact; d++)
+                fill(img, x0 + 1 + d * spacing, y0 + 2, 2, 2, label++);
+            fill(img, x0, y0 + BACT_WIDTH + 4, 2, 2, label++);
+        }
+        return(img);
+    }
+    
+    
+    private static void fill(ImageHandler img, int x0, int y0, int width, int height, int label) {
+        for (int y = y0; y < y0 + height; y++)
+            for (int x = x0; x < x0 + width; x++)
+                img.setPixel(x, y, 0, label);
+    }
+}
@@ -0,0 +1,57 @@
+package DNA_in_bacteria_Benchmarks;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileSaver;
+import java.io.File;
+import java.io.IOException;
+import ij.process.ShortProcessor;
+import java.util.Random;
+import mcib3d.image3d.ImageHandler;
+
+
+/**
+ * Deterministic synthetic 16-bit Z stacks, drawn from synthetic label images
+ * Objects are brighter than the background, with an intensity peak in the middle slice and a fixed-seed noise.
+ * @author Orion-CIRB
+ */
+public class SyntheticStacks {
+
+    public static final int BACKGROUND = 100;
+    public static final int SIGNAL = 1000;
+    public static final int NOISE = 20;
+
+
+    public static ImagePlus stack(ImageHandler labels, int nbSlices) {
+        int width = labels.sizeX;
+        int height = labels.sizeY;
+        Random random = new Random(42);
+        ImageStack stack = new ImageStack(width, height);
+        for (int z = 0; z < nbSlices; z++) {
+            // Objects are in focus in the middle slice
+            double focus = Math.exp(-Math.pow(z - (nbSlices-1)/2.0, 2) / Math.max(1, nbSlices));
+            short[] pixels = new short[width*height];
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    double value = BACKGROUND + NOISE*random.nextGaussian();
+                    if (labels.getPixel(x, y, 0) > 0)
+                        value += SIGNAL*focus;
+                    pixels[x + y*width] = (short) Math.max(0, Math.min(65535, Math.round(value)));
+                }
+            }
+            stack.addSlice(new ShortProcessor(width, height, pixels, null));
+        }
+        return(new ImagePlus(labels.getTitle() + "_stack", stack));
+    }
+
+
+    /**
+     * Save a stack as a TIFF file, to be read plane by plane as an image file
+     */
+    public static File save(ImagePlus stack, File dir) throws IOException {
+        File file = new File(dir, stack.getTitle() + ".tif");
+        if (!new FileSaver(stack).saveAsTiffStack(file.getPath()))
+            throw new IOException("Stack can't be saved in " + file);
+        return(file);
+    }
+}
@@ -1,26 +1,36 @@
+import DNA_in_bacteria_Tools.Frame;
+import DNA_in_bacteria_Tools.ColumnarResultsSink;
+import DNA_in_bacteria_Tools.FolderWatcher;
+import DNA_in_bacteria_Tools.FramePipeline;
+import DNA_in_bacteria_Tools.Journal;
+import DNA_in_bacteria_Tools.OrderedResults;
+import DNA_in_bacteria_Tools.OverlayWriter;
+import DNA_in_bacteria_Tools.ReaderManager;
+import DNA_in_bacteria_Tools.ResultsSink;
+import DNA_in_bacteria_Tools.RunReport;
+import DNA_in_bacteria_Tools.ShardMerger;
 import DNA_in_bacteria_Tools.Tools;
+import DNA_in_bacteria_Tools.TsvResultsSink;
 import ij.*;
 import ij.plugin.PlugIn;
-import ij.plugin.ZProjector;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import loci.common.services.DependencyException;
-import loci.common.services.ServiceException;
-import loci.common.services.ServiceFactory;
-import loci.formats.FormatException;
 import loci.formats.meta.IMetadata;
-import loci.formats.services.OMEXMLService;
-import loci.plugins.BF;
 import loci.plugins.util.ImageProcessorReader;
-import loci.plugins.in.ImporterOptions;
-import mcib3d.geom2.Objects3DIntPopulation;
 import org.scijava.util.ArrayUtils;
 
 
@@ -31,9 +41,12 @@ import org.scijava.util.ArrayUtils;
 public class DNA_in_bacteria implements PlugIn {
     
     Tools tools = new Tools();
+    // Each file is parsed once for the whole run
+    ReaderManager readers = new ReaderManager(tools);
+    // Frames given to a pipeline in this run, a file modified again is processed before its rows are journaled
+    private final Set<String> framesStarted = ConcurrentHashMap.newKeySet();
     private String imageDir = "";
     public String outDirResults = "";
-    public BufferedWriter results;
    
     
     public void run(String arg) {
@@ -55,34 +68,8 @@ public class DNA_in_bacteria implements PlugIn {
                 return;
             }
             
-            // Create output folder
-            outDirResults = imageDir + File.separator + "Results" + File.separator;
-            File outDir = new File(outDirResults);
-            if (!Files.exists(Paths.get(outDirResults))) {
-                outDir.mkdir();
-            }
-            // Write header in results file
-             String header = "Image name\tTime\t# bacterium\tBacterium surface (µm2)\tBacterium length (µm)\tDNA number\t# DNA\tDNA surface (µm2)\tDNA total intensity\t"
-                     + "DNA center to bacterium center (µm)\n";
-            FileWriter fwResults = new FileWriter(outDirResults + "results.xls", false);
-            results = new BufferedWriter(fwResults);
-            results.write(header);
-            results.flush();
-            
-            // Create OME-XML metadata store of the latest schema version
-            ServiceFactory factory;
-            factory = new ServiceFactory();
-            OMEXMLService service = factory.getInstance(OMEXMLService.class);
-            IMetadata meta = service.createOMEXMLMetadata();
-            ImageProcessorReader reader = new ImageProcessorReader();
-            reader.setMetadataStore(meta);
-            reader.setId(imageFiles.get(0));
-            
-            // Find image calibration
-            tools.findImageCalib(meta);
-            
-            // Find channels name
-            String[] channels = tools.findChannels(imageFiles.get(0), meta, reader);
+            // Find image calibration and channels name in the first image
+            String[] channels = readMetadata(imageFiles.get(0));
             
             // Dialog box
             String[] chs = tools.dialog(channels);
@@ -91,70 +78,195 @@ public class DNA_in_bacteria implements PlugIn {
                 return;
             }
             
-            for (String f : imageFiles) {
-                reader.setId(f);              
-                ImporterOptions options = new ImporterOptions();
-                options.setId(f);
-                options.setQuiet(true);
-                options.setColorMode(ImporterOptions.COLOR_MODE_GRAYSCALE);
-                options.setSplitChannels(true);
-                
-                int series = reader.getSeriesCount();
-                for (int s = 0; s < series; s++) {
-                    reader.setSeries(s);
-                    options.setSeriesOn(s, true);
-                    String seriesName = meta.getImageName(s);
-                    
-                    int time = reader.getSizeT();
-                    for (int t = 0; t < time; t++) {
-                        tools.print("--- ANALYZING IMAGE " + seriesName + " at time " + (t+1) + " ---");
-                        options.setTBegin(s, t);
-                        options.setTEnd(s, t);
-                        
-                        // Open bacteria channel
-                        int indexCh = ArrayUtils.indexOf(channels, chs[0]);
-                        System.out.println("Opening phase channel "+chs[0] );
-                        ImagePlus bactStack = BF.openImagePlus(options)[indexCh];
-                        ImagePlus imgBact = tools.doZProjection(bactStack, ZProjector.AVG_METHOD);
-                        tools.flush_close(bactStack);
-
-                        // Detect bacteria with Omnipose
-                        tools.print("- Detecting bacteria -");
-                        Objects3DIntPopulation bactPop = tools.omniposeDetection(imgBact, tools.omniposeBactModel, tools.minBactSurface, tools.maxBactSurface, true);
-                        System.out.println(bactPop.getNbObjects() + " bacteria found");
-
-                        // Open DNA channel
-                        indexCh = ArrayUtils.indexOf(channels, chs[1]);
-                        System.out.println("Opening DNA channel "+chs[1]);
-                        ImagePlus dnaStack = BF.openImagePlus(options)[indexCh];
-                        ImagePlus imgDna = tools.doZProjection(dnaStack, ZProjector.AVG_METHOD);
-                        tools.flush_close(dnaStack);
-
-                        // Detect DNA with Omnipose
-                        tools.print("- Detecting DNA -");
-                        Objects3DIntPopulation dnaPop = tools.omniposeDetection(imgDna, tools.omniposeDnaModel, tools.minDnaSurface, tools.maxDnaSurface, false);
-                        System.out.println(dnaPop.getNbObjects() + " DNA found");
-
-                        tools.dnaBactLink(bactPop, dnaPop);
-                        System.out.println(dnaPop.getNbObjects() + " DNA found in bacteria");
-
-                        // Save results
-                        tools.print("- Saving results -");
-                        tools.saveResults(bactPop, dnaPop, imgDna, seriesName, t+1, results);
-
-                        // Save images
-                        tools.drawResults(imgBact, imgDna, bactPop, dnaPop, seriesName+"_t"+(t+1), outDirResults);
-                        tools.flush_close(imgBact);
-                        tools.flush_close(imgDna);
-                    }
-                    options.clearSeries();
+            String outDir = imageDir + File.separator + "Results" + File.separator;
+            if (tools.watch) {
+                // First image may still be written, all images are read once stable
+                readers.close(imageFiles.get(0));
+                try (FolderWatcher watcher = new FolderWatcher(tools, imageDir, (long) (tools.watchStableSeconds*1000))) {
+                    tools.print("Watching " + imageDir);
+                    analyze(new ArrayList<>(), channels, chs, outDir, watcher);
                 }
-            }
-        
+            } else
+                analyze(imageFiles, channels, chs, outDir, null);
             tools.print("--- All done! ---");
             
-        }   catch (IOException | FormatException | DependencyException | ServiceException ex) {
+        }   catch (Exception ex) {
             Logger.getLogger(DNA_in_bacteria.class.getName()).log(Level.SEVERE, null, ex);
-        }  
+        } finally {
+            closeReaders();
+        }
+    }
+    
+    
+    /**
+     * Close readers left opened, if the analysis was canceled or failed
+     */
+    void closeReaders() {
+        try {
+            readers.close();
+        } catch (IOException ex) {
+            Logger.getLogger(DNA_in_bacteria.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+    
+    
+    /**
+     * Find image calibration and channels name
+     * @return channels name
+     */
+    String[] readMetadata(String file) throws Exception {
+        // Reader is kept to read the frames of the file
+        ImageProcessorReader reader = readers.get(file);
+        IMetadata meta = (IMetadata) reader.getMetadataStore();
+        tools.findImageCalib(meta);
+        return(tools.findChannels(file, meta, reader));
+    }
+    
+    
+    /**
+     * Analyze images with the parameters set in tools
+     * @param channels channels name
+     * @param chs bacteria and DNA channels
+     * @param outDir results folder
+     * @param watcher new images of the folder, analyzed until it is idle, null to analyze imageFiles only
+     */
+    void analyze(ArrayList<String> imageFiles, String[] channels, String[] chs, String outDir, FolderWatcher watcher) throws Exception {
+        // Create output folder
+        outDirResults = outDir;
+        File outDirFile = new File(outDirResults);
+        if (!Files.exists(Paths.get(outDirResults))) {
+            outDirFile.mkdirs();
+        }
+        
+        // Frames already analyzed, results of other frames are removed from the results files
+        // Each shard has its own results files and journal
+        ArrayList<File> resultsFiles = new ArrayList<>();
+        resultsFiles.add(new File(outDirResults + ShardMerger.resultsName(tools.nbShards, tools.shardIndex, ".xls")));
+        if (tools.columnarResults)
+            resultsFiles.add(new File(outDirResults + ShardMerger.resultsName(tools.nbShards, tools.shardIndex, ".bin")));
+        if (tools.nbShards > 1)
+            ShardMerger.clearDone(outDirResults, tools.shardIndex);
+        Journal journal = new Journal(outDirResults + ShardMerger.journalName(tools.nbShards, tools.shardIndex), tools.resume);
+        boolean append = tools.resume && journal.restoreResults(resultsFiles.toArray(new File[0]));
+        if (append)
+            tools.print(journal.nbDone() + " frames already analyzed");
+        
+        // Results files, with their header if they are new
+        ArrayList<ResultsSink> sinks = new ArrayList<>();
+        sinks.add(new TsvResultsSink(resultsFiles.get(0), append));
+        if (tools.columnarResults)
+            sinks.add(new ColumnarResultsSink(resultsFiles.get(1), append));
+        
+        // Time and memory of each step, next to the results, after those of the previous run if resumed
+        RunReport report = new RunReport(outDirResults, tools.nbShards, tools.shardIndex, tools.resume);
+        
+        // Load Omnipose models once for the whole run
+        RunReport.Timer timer = RunReport.start();
+        tools.startOmniposeWorker();
+        report.add(null, "omnipose start", timer, 0);
+        
+        int indexBact = ArrayUtils.indexOf(channels, chs[0]);
+        int indexDna = ArrayUtils.indexOf(channels, chs[1]);
+        // Results images saved in the background
+        OverlayWriter overlays = new OverlayWriter(tools.nbOverlayWriters, tools.overlayQueueDepth);
+        OrderedResults orderedResults = new OrderedResults(sinks, journal, overlays, tools.resultsFlushKB*1024, tools.resultsFlushRows);
+        
+        // Process files in parallel, each one with its own reader
+        ExecutorService fileWorkers = Executors.newFixedThreadPool(Math.max(1, tools.nbFileWorkers));
+        try {
+            List<Future<Void>> tasks = new ArrayList<>();
+            // Last task of each file, a file given again by the watcher is processed after it
+            HashMap<String, Future<Void>> fileTasks = new HashMap<>();
+            List<String> files = imageFiles;
+            while (files != null) {
+                for (String file : files) {
+                    if (fileTasks.containsKey(file))
+                        await(fileTasks.get(file));
+                    // Results are written in tasks order
+                    int fileIndex = tasks.size();
+                    Future<Void> task = fileWorkers.submit(() -> processFile(fileIndex, file, indexBact, indexDna, journal, orderedResults, report, overlays));
+                    tasks.add(task);
+                    fileTasks.put(file, task);
+                }
+                if (watcher == null)
+                    break;
+                // Stop watching at the first failed file
+                for (Future<Void> task : tasks) {
+                    if (task.isDone())
+                        await(task);
+                }
+                files = watcher.next((long) (tools.watchIdleMinutes*60000));
+            }
+            for (Future<Void> task : tasks)
+                await(task);
+        } finally {
+            fileWorkers.shutdownNow();
+            // Files interrupted by a failure still use the worker, readers and results files until they stop
+            try {
+                if (!fileWorkers.awaitTermination(1, TimeUnit.MINUTES))
+                    tools.print("Files still analyzed 1 min after the end of the run, closing anyway");
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            tools.stopOmniposeWorker();
+            // Keep rows of frames done before a failure, once their results images are saved
+            try {
+                overlays.close();
+                orderedResults.checkpoint();
+            } finally {
+                for (ResultsSink sink : sinks)
+                    sink.close();
+                journal.close();
+                report.close();
+                readers.close();
+            }
+        }
+        // All frames of the shard analyzed, it can be merged
+        if (tools.nbShards > 1)
+            ShardMerger.markDone(outDirResults, tools.shardIndex, journal.nbDone());
+    }
+    
+    
+    /**
+     * Wait for a file task, and throw its error
+     */
+    private static void await(Future<Void> task) throws Exception {
+        try {
+            task.get();
+        } catch (ExecutionException ex) {
+            throw (ex.getCause() instanceof Exception) ? (Exception) ex.getCause() : ex;
+        }
+    }
+    
+    
+    /**
+     * Open, segment and measure all frames of a file that are in the shard and not in the journal
+     */
+    private Void processFile(int fileIndex, String file, int indexBact, int indexDna, Journal journal, OrderedResults results, RunReport report, OverlayWriter overlays) throws Exception {
+        ImageProcessorReader reader = readers.get(file);
+        try {
+            IMetadata meta = (IMetadata) reader.getMetadataStore();
+            
+            // List all frames of the file
+            ArrayList<Frame> frames = new ArrayList<>();
+            int series = reader.getSeriesCount();
+            for (int s = 0; s < series; s++) {
+                reader.setSeries(s);
+                String seriesName = meta.getImageName(s);
+                int time = reader.getSizeT();
+                for (int t = 0; t < time; t++) {
+                    Frame frame = new Frame(file, fileIndex, s, seriesName, t);
+                    if (frame.getShard(tools.nbShards) == tools.shardIndex && !journal.isDone(frame) && framesStarted.add(frame.getKey()))
+                        frames.add(frame);
+                }
+            }
+            
+            // Open, segment and measure frames in parallel stages
+            new FramePipeline(tools, reader, indexBact, indexDna, outDirResults, results, report, overlays).run(frames);
+        } finally {
+            readers.close(file);
+            results.fileDone(fileIndex);
+        }
+        return null;
     }
-}    
+}
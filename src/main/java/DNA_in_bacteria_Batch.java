@@ -0,0 +1,182 @@
+import DNA_in_bacteria_Tools.FolderWatcher;
+import DNA_in_bacteria_Tools.ShardMerger;
+import ij.Macro;
+import ij.plugin.PlugIn;
+import java.awt.GraphicsEnvironment;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * Detect bacteria and DNA in them with Omnipose, without dialog box
+ * Parameters are read from a properties file and/or key=value arguments, arguments override the file:
+ *   ImageJ --headless --run "DNA in bacteria batch" "params=/path/params.properties inputDir=[/path/images]"
+ *   java -cp <Fiji jars> DNA_in_bacteria_Batch /path/params.properties inputDir=/path/images
+ * Keys: inputDir, outputDir (default inputDir/Results), and the keys of Tools.parameters
+ * With nbShards and shardIndex, only frames of one shard are analyzed, so shards can run on several machines;
+ * merge=true then merges results of all shards of outputDir in results.xls (and results.bin).
+ * With watch=true, new images written in inputDir are analyzed once stable, until none is written for watchIdleMinutes.
+ * Exit status: 0 = done, 1 = invalid parameters, 2 = no images found, 3 = analysis failed
+ * @author Orion-CIRB
+ */
+public class DNA_in_bacteria_Batch implements PlugIn {
+
+    public static final int DONE = 0;
+    public static final int INVALID_PARAMETERS = 1;
+    public static final int NO_IMAGES = 2;
+    public static final int FAILED = 3;
+
+    // key=value or key=[value with spaces], as in macro options
+    private static final Pattern OPTION = Pattern.compile("(\\w+)=(\\[[^\\]]*\\]|\\S+)");
+
+
+    public void run(String arg) {
+        String options = Macro.getOptions();
+        Properties params = new Properties();
+        int status;
+        try {
+            if (options != null) {
+                Matcher m = OPTION.matcher(options);
+                while (m.find()) {
+                    String value = m.group(2);
+                    params.setProperty(m.group(1), value.startsWith("[") ? value.substring(1, value.length()-1) : value);
+                }
+            }
+            status = analyze(params);
+        } catch (IOException ex) {
+            System.out.println("Parameters can't be read: " + ex.getMessage());
+            status = INVALID_PARAMETERS;
+        }
+        // Give the status to the scheduler
+        if (status != DONE && GraphicsEnvironment.isHeadless())
+            System.exit(status);
+    }
+
+
+    public static void main(String[] args) {
+        Properties params = new Properties();
+        int status;
+        try {
+            for (String arg : args) {
+                int eq = arg.indexOf('=');
+                if (eq > 0)
+                    params.setProperty(arg.substring(0, eq), arg.substring(eq+1));
+                else
+                    params.setProperty("params", arg);
+            }
+            status = new DNA_in_bacteria_Batch().analyze(params);
+        } catch (IOException ex) {
+            System.out.println("Parameters can't be read: " + ex.getMessage());
+            status = INVALID_PARAMETERS;
+        }
+        System.exit(status);
+    }
+
+
+    /**
+     * Analyze a folder
+     * @param params parameters, "params" is the path of a properties file with other parameters
+     * @return exit status
+     */
+    public int analyze(Properties params) throws IOException {
+        // Parameters file, overridden by given parameters
+        Properties allParams = new Properties();
+        if (params.getProperty("params") != null) {
+            try (Reader reader = new FileReader(params.getProperty("params"))) {
+                allParams.load(reader);
+            }
+        }
+        allParams.putAll(params);
+
+        DNA_in_bacteria plugin = new DNA_in_bacteria();
+        if (!plugin.tools.checkInstalledModules())
+            return(FAILED);
+
+        String imageDir = allParams.getProperty("inputDir");
+        if (imageDir == null || !new File(imageDir).isDirectory()) {
+            System.out.println("Invalid input directory: " + imageDir);
+            return(INVALID_PARAMETERS);
+        }
+        String outDir = allParams.getProperty("outputDir", imageDir + File.separator + "Results");
+        if (!outDir.endsWith(File.separator))
+            outDir += File.separator;
+
+        if (Boolean.parseBoolean(allParams.getProperty("merge", "false"))) {
+            try {
+                int nbShards = Integer.parseInt(allParams.getProperty("nbShards", "1"));
+                int frames = ShardMerger.merge(outDir, nbShards);
+                plugin.tools.print(frames + " frames of " + nbShards + " shards merged");
+                return(DONE);
+            } catch (NumberFormatException ex) {
+                System.out.println("Invalid number of shards: " + ex.getMessage());
+                return(INVALID_PARAMETERS);
+            } catch (IOException ex) {
+                System.out.println("Shards can't be merged: " + ex.getMessage());
+                return(FAILED);
+            }
+        }
+        
+        try {
+            // Before any reader is opened
+            plugin.tools.openingParameters(allParams);
+        } catch (IllegalArgumentException ex) {
+            System.out.println("Invalid parameters: " + ex.getMessage());
+            return(INVALID_PARAMETERS);
+        }
+        if (plugin.tools.watch) {
+            try (FolderWatcher watcher = new FolderWatcher(plugin.tools, imageDir, (long) (plugin.tools.watchStableSeconds*1000))) {
+                plugin.tools.print("Watching " + imageDir);
+                // Wait for the first images to read the channels
+                ArrayList<String> imageFiles = watcher.next((long) (plugin.tools.watchIdleMinutes*60000));
+                return(analyze(plugin, allParams, imageFiles, outDir, watcher));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return(FAILED);
+            }
+        }
+        
+        // Find images with extension
+        String file_ext = plugin.tools.findImageType(new File(imageDir));
+        ArrayList<String> imageFiles = plugin.tools.findImages(imageDir, file_ext);
+        return(analyze(plugin, allParams, imageFiles, outDir, null));
+    }
+    
+    
+    /**
+     * Analyze images, and new images given by the watcher if any
+     * @return exit status
+     */
+    private int analyze(DNA_in_bacteria plugin, Properties allParams, ArrayList<String> imageFiles, String outDir, FolderWatcher watcher) {
+        if (imageFiles == null || imageFiles.isEmpty()) {
+            System.out.println("No images found");
+            return(NO_IMAGES);
+        }
+
+        try {
+            String[] channels = plugin.readMetadata(imageFiles.get(0));
+            String[] chs;
+            try {
+                chs = plugin.tools.parameters(allParams, channels);
+            } catch (IllegalArgumentException ex) {
+                System.out.println("Invalid parameters: " + ex.getMessage());
+                return(INVALID_PARAMETERS);
+            }
+            plugin.analyze(imageFiles, channels, chs, outDir, watcher);
+        } catch (Exception ex) {
+            Logger.getLogger(DNA_in_bacteria_Batch.class.getName()).log(Level.SEVERE, null, ex);
+            return(FAILED);
+        } finally {
+            plugin.closeReaders();
+        }
+        plugin.tools.print("--- All done! ---");
+        return(DONE);
+    }
+}
@@ -0,0 +1,141 @@
+package DNA_in_bacteria_Tools;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+
+/**
+ * Results file whose rows are encoded in a byte buffer, written to the file on flush
+ * @author Orion-CIRB
+ */
+public abstract class BufferedResultsSink implements ResultsSink {
+
+    private final File file;
+    private final FileOutputStream out;
+    // Bytes already in the file
+    private long written;
+    protected byte[] buffer = new byte[1 << 16];
+    protected int count = 0;
+
+
+    /**
+     * @param append add rows at the end of the file, else the file is started again
+     */
+    protected BufferedResultsSink(File file, boolean append) throws IOException {
+        this.file = file;
+        append = append && file.exists();
+        out = new FileOutputStream(file, append);
+        written = append ? file.length() : 0;
+    }
+
+
+    @Override
+    public File getFile() {
+        return file;
+    }
+
+
+    @Override
+    public long position() {
+        return written + count;
+    }
+
+
+    @Override
+    public int buffered() {
+        return count;
+    }
+
+
+    @Override
+    public void flush() throws IOException {
+        if (count == 0)
+            return;
+        out.write(buffer, 0, count);
+        written += count;
+        count = 0;
+    }
+
+
+    @Override
+    public void sync() throws IOException {
+        flush();
+        out.getFD().sync();
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            out.close();
+        }
+    }
+
+
+    private void ensure(int n) {
+        if (count + n > buffer.length)
+            buffer = Arrays.copyOf(buffer, Math.max(2*buffer.length, count + n));
+    }
+
+
+    protected void putByte(int b) {
+        ensure(1);
+        buffer[count++] = (byte) b;
+    }
+
+
+    protected void putBytes(byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buffer, count, bytes.length);
+        count += bytes.length;
+    }
+
+
+    /**
+     * Characters must be ASCII, as numbers
+     */
+    protected void putAscii(CharSequence chars) {
+        int n = chars.length();
+        ensure(n);
+        for (int i = 0; i < n; i++)
+            buffer[count++] = (byte) chars.charAt(i);
+    }
+
+
+    // Little-endian binary values
+
+    protected void putShort(int v) {
+        ensure(2);
+        buffer[count++] = (byte) v;
+        buffer[count++] = (byte) (v >>> 8);
+    }
+
+
+    protected void putInt(int v) {
+        ensure(4);
+        buffer[count++] = (byte) v;
+        buffer[count++] = (byte) (v >>> 8);
+        buffer[count++] = (byte) (v >>> 16);
+        buffer[count++] = (byte) (v >>> 24);
+    }
+
+
+    protected void putLong(long v) {
+        putInt((int) v);
+        putInt((int) (v >>> 32));
+    }
+
+
+    protected void putFloat(float v) {
+        putInt(Float.floatToRawIntBits(v));
+    }
+
+
+    protected void putDouble(double v) {
+        putLong(Double.doubleToRawLongBits(v));
+    }
+}
@@ -5,10 +5,15 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import static java.io.File.separatorChar;
 
@@ -18,6 +23,38 @@ import DNA_in_bacteria_Tools.Cellpose.CellposeTaskSettings;
 
 public class Cellpose {
 
+    /**
+     * Create a new empty folder for one Cellpose call, in the scratch folder of the settings or in the temp folder
+     * Each call gets its own folder, so several segmentations can run at the same time
+     */
+    static File createWorkspace(CellposeTaskSettings settings) throws IOException {
+        if (settings.scratchDir != null && !settings.scratchDir.isEmpty()) {
+            Path scratch = Paths.get(settings.scratchDir);
+            Files.createDirectories(scratch);
+            return Files.createTempDirectory(scratch, "cellposeTemp").toFile();
+        }
+        return Files.createTempDirectory("cellposeTemp").toFile();
+    }
+
+    /**
+     * Delete a Cellpose folder and everything in it
+     */
+    static void deleteWorkspace(File dir) {
+        File[] contents = dir.listFiles();
+        if (contents != null) {
+            for (File f : contents) {
+                if (f.isDirectory())
+                    deleteWorkspace(f);
+                else
+                    f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    // ">>>> TOTAL TIME 12.34 sec" line written by Cellpose at the end of a run
+    private static final Pattern TOTAL_TIME = Pattern.compile("TOTAL TIME\\s+([0-9.]+)");
+
     static void execute(List<String> options, CellposeTaskSettings settings, Consumer<InputStream> outputHandler) throws IOException, InterruptedException {
         List<String> cmd = new ArrayList<>();
         List<String> start_cmd = null ;
@@ -88,6 +125,10 @@ public class Cellpose {
                 try {
                     for (String line = stdIn.readLine(); line != null; ) {
                         System.out.println(line);
+                        // Run time, without Python start and imports
+                        Matcher m = TOTAL_TIME.matcher(line);
+                        if (m.find())
+                            settings.totalTime = Double.parseDouble(m.group(1));
                         line = stdIn.readLine();// you don't want to remove or comment that line! no you don't :P
                     }
                 } catch (IOException e) {
@@ -99,6 +140,7 @@ public class Cellpose {
         t.start();
 
         p.waitFor();
+        t.join(5000);
 
         int exitValue = p.exitValue();
 
@@ -0,0 +1,86 @@
+package DNA_in_bacteria_Tools.Cellpose;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.FileSaver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Segment a list of 2D images with a single Cellpose call
+ * All images are saved in the same dataset folder, so the Python interpreter and the model are loaded only once
+ */
+public class CellposeSegmentImgPlusBatch {
+
+    CellposeTaskSettings settings;
+    List<ImagePlus> imps;
+
+    public CellposeSegmentImgPlusBatch(CellposeTaskSettings settings, List<ImagePlus> imps) {
+        this.settings = settings;
+        this.imps = imps;
+    }
+
+    /**
+     * @return masks, in the same order as the input images
+     * @throws IOException if a mask is missing, masks already opened are closed
+     */
+    public ArrayList<ImagePlus> run() throws IOException {
+        ArrayList<ImagePlus> masks = new ArrayList<>(imps.size());
+
+        // Create a temp folder of its own to save all the images of the batch
+        File cellposeTempDir = Cellpose.createWorkspace(settings);
+
+        // Add temp folder to the settings
+        settings.setDatasetDir(cellposeTempDir.toString());
+        settings.use3D(false);
+
+        CellposeTask cellposeTask = new CellposeTask();
+        cellposeTask.setSettings(settings);
+
+        // Images are named after their index in the batch, masks are mapped back with the same index
+        List<File> cellpose_masks_paths = new ArrayList<>();
+        try {
+            for (int i = 0; i < imps.size(); i++) {
+                // Save a copy, as FileSaver renames the saved image
+                ImagePlus imp = imps.get(i).duplicate();
+                File imp_path = new File(cellposeTempDir, "img" + i + ".tif");
+                new FileSaver(imp).saveAsTiff(imp_path.toString());
+                imp.flush();
+                imp.close();
+                cellpose_masks_paths.add(new File(cellposeTempDir, "img" + i + "_cp_masks.tif"));
+            }
+
+            // Run Cellpose once for the whole batch
+            cellposeTask.run();
+
+            for (int i = 0; i < imps.size(); i++) {
+                ImagePlus mask = IJ.openImage(cellpose_masks_paths.get(i).toString());
+                if (mask == null)
+                    throw new IOException("No Cellpose mask for image " + (i+1) + " of " + imps.size());
+                // Make sure to return a 16-bit image
+                if (mask.getBitDepth() != 16)
+                    mask.setProcessor(mask.getProcessor().convertToShort(false));
+                mask.setCalibration(imps.get(i).getCalibration());
+                mask.setTitle(imps.get(i).getShortTitle() + "-cellpose");
+                // Cellpose run time shared by the images of the batch
+                if (settings.totalTime >= 0)
+                    mask.setProperty(OmniposeWorker.INFERENCE_TIME, settings.totalTime / imps.size());
+                masks.add(mask);
+            }
+
+        } catch (Exception e) {
+            for (ImagePlus mask : masks) {
+                mask.flush();
+                mask.close();
+            }
+            throw (e instanceof IOException) ? (IOException) e : new IOException("Cellpose failed: " + e.getMessage(), e);
+        } finally {
+            // Delete the created files and folder, even if Cellpose failed
+            Cellpose.deleteWorkspace(cellposeTempDir);
+        }
+        return masks;
+    }
+}
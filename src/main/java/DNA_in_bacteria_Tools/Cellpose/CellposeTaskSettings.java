@@ -5,6 +5,8 @@ public class CellposeTaskSettings {
     
     // Values defined from https://cellpose.readthedocs.io/en/latest/api.html
     String datasetDir;
+    // Folder where Cellpose folders are created, temp folder if null
+    String scratchDir = null;
     String model;
     int ch1;
     int ch2 = -1;
@@ -26,6 +28,8 @@ public class CellposeTaskSettings {
     boolean cluster = false;
     boolean useMxnet = true;
     boolean verbose = false;
+    // Run time reported by Cellpose (seconds), -1 if not reported
+    double totalTime = -1;
     
     
     public CellposeTaskSettings(String model, int ch1, int diameter, String cellposeEnvDirectory) {
@@ -40,6 +44,11 @@ public class CellposeTaskSettings {
         return this;
     }
 
+    public CellposeTaskSettings setScratchDir(String scratchDir) {
+        this.scratchDir = scratchDir;
+        return this;
+    }
+
     public CellposeTaskSettings setModel(String model) {
         this.model = model;
         return this;
@@ -0,0 +1,332 @@
+package DNA_in_bacteria_Tools.Cellpose;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.process.ShortProcessor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import static java.io.File.separatorChar;
+
+/**
+ * Long-lived Omnipose Python process, with all models loaded once
+ *
+ * Protocol on the worker stdin/stdout (one ASCII line per message, binary payloads are little-endian):
+ *   PING                              -> PONG
+ *   SEGMENT model width height + float32 pixels -> MASK width height seconds + uint16 labels
+ *                                     or ERROR message
+ *   SEGMENT_SHM model path            -> MASK width height seconds, labels written in the shared buffer
+ *                                     or ERROR message
+ *   QUIT                              -> BYE
+ * The worker writes READY on its stdout once all models are loaded, everything else goes to its stderr.
+ * With SEGMENT_SHM, image and labels are exchanged through a memory-mapped SharedImageBuffer instead of the pipe.
+ * Replies are read with a timeout, a worker that doesn't reply in time is killed.
+ */
+public class OmniposeWorker implements Closeable {
+
+    public static final String WORKER_SCRIPT = "/omnipose_worker.py";
+    public static final String STUB_WORKER_SCRIPT = "/omnipose_stub_worker.py";
+    // Mask property with the Omnipose run time of the image (seconds), as reported by Omnipose
+    public static final String INFERENCE_TIME = "omnipose.inferenceTime";
+    // Mask property set to true on masks computed by the worker
+    public static final String WORKER_MASK = "omnipose.worker";
+    // Max time to answer a PING (ms)
+    private static final long PING_TIMEOUT = 30000;
+
+    private final Process process;
+    private final InputStream in;
+    private final OutputStream out;
+    // Max time to load the models and to segment an image (ms)
+    private final long timeout;
+    // Replies are read by this thread, to wait for them with a timeout
+    private final ExecutorService replies = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "omnipose-worker-replies");
+        t.setDaemon(true);
+        return t;
+    });
+    // Null if images are sent through the pipe
+    private SharedImageBuffer shared = null;
+
+
+    private OmniposeWorker(List<String> cmd, long timeout) throws IOException {
+        System.out.println(cmd.toString().replace(",", ""));
+        this.timeout = timeout;
+        process = new ProcessBuilder(cmd).start();
+        in = new BufferedInputStream(process.getInputStream());
+        out = new BufferedOutputStream(process.getOutputStream());
+
+        // Worker logs
+        Thread t = new Thread("omnipose-worker-" + process.hashCode()) {
+            @Override
+            public void run() {
+                BufferedReader stdErr = new BufferedReader(new InputStreamReader(process.getErrorStream()));
+                try {
+                    for (String line = stdErr.readLine(); line != null; line = stdErr.readLine())
+                        System.out.println(line);
+                } catch (IOException e) {
+                    System.out.println(e.getMessage());
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+
+        String reply;
+        try {
+            reply = reply(this::readLine, timeout);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        if (!reply.startsWith("READY")) {
+            close();
+            throw new IOException("Unexpected Omnipose worker reply: " + reply);
+        }
+        System.out.println("Omnipose worker started: " + reply);
+    }
+
+
+    /**
+     * Start a worker in the Omnipose environment, with the given models loaded
+     * @param models models full path
+     * @param stub use the stub worker, that only thresholds images and runs with any Python 3
+     * @param sharedMemory exchange images through a memory-mapped buffer instead of the pipe
+     * @param timeout max time to load the models and to segment an image (seconds)
+     */
+    public static OmniposeWorker start(CellposeTaskSettings settings, List<String> models, boolean stub, boolean sharedMemory,
+            int timeout) throws IOException {
+        List<String> cmd = new ArrayList<>();
+        if (stub)
+            cmd.add(IJ.isWindows() ? "python" : "python3");
+        else if (IJ.isWindows())
+            cmd.add(settings.cellposeEnvDirectory + separatorChar + "python.exe");
+        else
+            cmd.add(settings.cellposeEnvDirectory + separatorChar + "bin" + separatorChar + "python");
+        cmd.add("-u");
+        cmd.add(extractScript(stub ? STUB_WORKER_SCRIPT : WORKER_SCRIPT).toString());
+
+        for (String model : models) {
+            cmd.add("--model");
+            cmd.add(new File(model).getName() + "=" + model);
+        }
+        cmd.addAll(Arrays.asList("--chan", "" + settings.ch1, "--chan2", "" + Math.max(settings.ch2, 0)));
+        cmd.addAll(Arrays.asList("--diameter", "" + settings.diameter));
+        cmd.addAll(Arrays.asList("--flow_threshold", "" + settings.flow_threshold));
+        // The worker gives the threshold to the option of this Cellpose version, as CellposeTask does
+        cmd.addAll(Arrays.asList("--version", settings.version));
+        cmd.addAll(Arrays.asList("--threshold", "" + settings.cellprob_threshold));
+        if (settings.omni)
+            cmd.add("--omni");
+        if (settings.cluster)
+            cmd.add("--cluster");
+        if (settings.useGpu)
+            cmd.add("--use_gpu");
+        OmniposeWorker worker = new OmniposeWorker(cmd, TimeUnit.SECONDS.toMillis(timeout));
+        if (sharedMemory) {
+            try {
+                worker.shared = new SharedImageBuffer();
+            } catch (IOException e) {
+                System.out.println("Shared buffer can't be created (" + e.getMessage() + "), images will be sent through the pipe");
+            }
+        }
+        return worker;
+    }
+
+
+    /**
+     * Copy worker script from the plugin jar to the temp folder
+     */
+    private static File extractScript(String resource) throws IOException {
+        File script = File.createTempFile("omnipose_worker", ".py");
+        script.deleteOnExit();
+        try (InputStream is = OmniposeWorker.class.getResourceAsStream(resource)) {
+            if (is == null)
+                throw new IOException("Resource " + resource + " not found");
+            Files.copy(is, script.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return script;
+    }
+
+
+    /**
+     * Images are exchanged through the shared buffer
+     */
+    boolean isSharedMemory() {
+        return shared != null;
+    }
+
+
+    /**
+     * Health check
+     */
+    public synchronized boolean ping() {
+        if (!process.isAlive())
+            return false;
+        try {
+            writeLine("PING");
+            out.flush();
+            return reply(this::readLine, Math.min(PING_TIMEOUT, timeout)).equals("PONG");
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+
+    /**
+     * Segment a 2D image with one of the loaded models
+     * @param model model name (file name of the model)
+     * @return 16-bit label image
+     */
+    public synchronized ImagePlus segment(ImagePlus imp, String model) throws IOException {
+        if (!process.isAlive())
+            throw new IOException("Omnipose worker is not running");
+        int width = imp.getWidth();
+        int height = imp.getHeight();
+        float[] pixels = (float[]) imp.getProcessor().convertToFloat().getPixels();
+        short[] labels = new short[width * height];
+
+        if (shared != null) {
+            shared.writeImage(pixels, width, height);
+            writeLine("SEGMENT_SHM " + new File(model).getName() + " " + shared.getPath());
+        } else {
+            ByteBuffer request = ByteBuffer.allocate(4 * pixels.length).order(ByteOrder.LITTLE_ENDIAN);
+            request.asFloatBuffer().put(pixels);
+            writeLine("SEGMENT " + new File(model).getName() + " " + width + " " + height);
+            out.write(request.array());
+        }
+        out.flush();
+
+        String[] reply = reply(() -> {
+            String[] line = readLine().split(" ", 4);
+            // Labels sent through the pipe are read within the same timeout
+            if (shared == null && line[0].equals("MASK") && Integer.parseInt(line[1]) == width && Integer.parseInt(line[2]) == height) {
+                byte[] response = new byte[2 * width * height];
+                readFully(response);
+                ByteBuffer.wrap(response).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(labels);
+            }
+            return line;
+        }, timeout);
+        if (!reply[0].equals("MASK"))
+            throw new IOException("Omnipose worker failed: " + String.join(" ", reply));
+        if (Integer.parseInt(reply[1]) != width || Integer.parseInt(reply[2]) != height)
+            throw new IOException("Omnipose worker returned a " + reply[1] + "x" + reply[2] + " mask for a " + width + "x" + height + " image");
+        // Omnipose inference time, as reported by the worker
+        double inferenceTime = Double.parseDouble(reply[3]);
+        if (shared != null)
+            shared.readLabels(labels);
+
+        ImagePlus mask = new ImagePlus(imp.getShortTitle() + "-cellpose", new ShortProcessor(width, height, labels, null));
+        mask.setCalibration(imp.getCalibration());
+        mask.setProperty(INFERENCE_TIME, inferenceTime);
+        mask.setProperty(WORKER_MASK, true);
+        return mask;
+    }
+
+
+    /**
+     * Stop the worker
+     */
+    @Override
+    public synchronized void close() {
+        try {
+            if (process.isAlive()) {
+                writeLine("QUIT");
+                out.flush();
+            }
+            out.close();
+        } catch (IOException e) {
+            // Worker already gone
+        }
+        try {
+            if (shared != null)
+                shared.close();
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        }
+        try {
+            if (!process.waitFor(PING_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                System.out.println("Omnipose worker did not quit, killed");
+                process.destroyForcibly();
+            }
+        } catch (InterruptedException e) {
+            process.destroyForcibly();
+            Thread.currentThread().interrupt();
+        }
+        replies.shutdownNow();
+    }
+
+
+    /**
+     * Read a reply on the replies thread
+     * @param timeout max time to wait for the reply (ms), the worker is killed if it didn't reply in time
+     */
+    private <T> T reply(Callable<T> read, long timeout) throws IOException {
+        Future<T> reply = replies.submit(read);
+        try {
+            return reply.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // Killing the worker ends the pending read
+            process.destroyForcibly();
+            throw new IOException("Omnipose worker did not reply within " + timeout/1000 + " s, killed");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException("Omnipose worker reply can't be read", e.getCause());
+        } catch (InterruptedException e) {
+            process.destroyForcibly();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the Omnipose worker");
+        }
+    }
+
+
+    private void writeLine(String line) throws IOException {
+        out.write((line + "\n").getBytes(StandardCharsets.US_ASCII));
+    }
+
+
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (int c = in.read(); c != '\n'; c = in.read()) {
+            if (c == -1)
+                throw new EOFException("Omnipose worker exited");
+            line.append((char) c);
+        }
+        return line.toString().trim();
+    }
+
+
+    private void readFully(byte[] buffer) throws IOException {
+        int offset = 0;
+        while (offset < buffer.length) {
+            int n = in.read(buffer, offset, buffer.length - offset);
+            if (n == -1)
+                throw new EOFException("Omnipose worker exited");
+            offset += n;
+        }
+    }
+}
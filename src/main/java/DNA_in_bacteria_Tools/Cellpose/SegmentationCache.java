@@ -0,0 +1,170 @@
+package DNA_in_bacteria_Tools.Cellpose;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.FileSaver;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * On-disk cache of raw Cellpose masks, before any filtering
+ * Masks are keyed by a SHA-256 hash of the image pixels, the model file content, the settings changing the masks and
+ * the way Omnipose was run (worker or command line, which don't call Omnipose with the same arguments),
+ * so they are reused when only the objects filters change.
+ * Least recently used masks are deleted when the cache is bigger than its max size.
+ */
+public class SegmentationCache {
+
+    private final File dir;
+    private final long maxBytes;
+    // Model path -> hash of the model file
+    private final ConcurrentHashMap<String, String> modelHashes = new ConcurrentHashMap<>();
+
+
+    public SegmentationCache(String dir, long maxBytes) {
+        this.dir = new File(dir);
+        this.dir.mkdirs();
+        this.maxBytes = maxBytes;
+    }
+
+
+    /**
+     * Key of the mask of an image segmented with given settings
+     * @param worker mask computed by the Omnipose worker instead of the command line
+     */
+    public String key(ImagePlus imp, CellposeTaskSettings settings, boolean worker) throws IOException {
+        MessageDigest digest = sha256();
+        float[] pixels = (float[]) imp.getProcessor().convertToFloat().getPixels();
+        ByteBuffer chunk = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        chunk.putInt(imp.getWidth()).putInt(imp.getHeight());
+        for (float pixel : pixels) {
+            if (chunk.remaining() < 4) {
+                digest.update(chunk.array(), 0, chunk.position());
+                chunk.clear();
+            }
+            chunk.putFloat(pixel);
+        }
+        digest.update(chunk.array(), 0, chunk.position());
+
+        String params = modelHash(settings.model) + "|" + settings.version + "|" + settings.ch1 + "|" + settings.ch2 + "|"
+                + settings.diameter + "|" + settings.flow_threshold + "|" + settings.cellprob_threshold + "|"
+                + settings.stitch_threshold + "|" + settings.omni + "|" + settings.cluster + "|" + settings.invert + "|"
+                + settings.use3D + "|" + settings.useResample + "|" + settings.useFastMode + "|" + settings.useGpu + "|"
+                + (worker ? "worker" : "cli");
+        digest.update(params.getBytes(StandardCharsets.UTF_8));
+        return toHex(digest.digest());
+    }
+
+
+    /**
+     * Cached mask, null if not in cache
+     */
+    public ImagePlus get(String key) {
+        File file = new File(dir, key + ".tif");
+        if (!file.exists())
+            return null;
+        ImagePlus mask = IJ.openImage(file.toString());
+        if (mask != null)
+            file.setLastModified(System.currentTimeMillis());
+        else if (file.delete())
+            System.out.println("Unreadable cached mask " + file.getName() + " deleted");
+        return mask;
+    }
+
+
+    /**
+     * Add a mask to the cache, and delete least recently used masks if the cache is too big
+     */
+    public void put(String key, ImagePlus mask) {
+        File tmp = null;
+        try {
+            tmp = File.createTempFile(key, ".tmp", dir);
+            // FileSaver renames the saved image
+            String title = mask.getTitle();
+            boolean saved = new FileSaver(mask).saveAsTiff(tmp.toString());
+            mask.setTitle(title);
+            if (!saved)
+                throw new IOException("mask not saved in " + tmp);
+            Files.move(tmp.toPath(), new File(dir, key + ".tif").toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Mask can't be cached: " + e.getMessage());
+            if (tmp != null)
+                tmp.delete();
+            return;
+        }
+        evict();
+    }
+
+
+    private synchronized void evict() {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".tif"));
+        if (files == null)
+            return;
+        long size = 0;
+        for (File f : files)
+            size += f.length();
+        if (size <= maxBytes)
+            return;
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File f : files) {
+            if (size <= maxBytes)
+                break;
+            long length = f.length();
+            if (f.delete())
+                size -= length;
+        }
+    }
+
+
+    /**
+     * Hash of the model file content, or of the model name if it is not a file (built-in model)
+     */
+    private String modelHash(String model) throws IOException {
+        File file = new File(model);
+        if (!file.isFile())
+            return model;
+        String id = model + "|" + file.length() + "|" + file.lastModified();
+        String hash = modelHashes.get(id);
+        if (hash == null) {
+            MessageDigest digest = sha256();
+            byte[] buffer = new byte[1 << 16];
+            try (InputStream is = new FileInputStream(file)) {
+                for (int n = is.read(buffer); n != -1; n = is.read(buffer))
+                    digest.update(buffer, 0, n);
+            }
+            hash = toHex(digest.digest());
+            modelHashes.put(id, hash);
+        }
+        return hash;
+    }
+
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes)
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return hex.toString();
+    }
+}
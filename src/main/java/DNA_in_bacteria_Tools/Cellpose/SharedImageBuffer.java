@@ -0,0 +1,78 @@
+package DNA_in_bacteria_Tools.Cellpose;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Memory-mapped file used to exchange images and masks with the Omnipose worker without encoding them
+ * Stored in /dev/shm when available, so it never reaches the disk.
+ *
+ * Layout (little-endian):
+ *   int magic ("DNAB"), int width, int height, int dtype (0 = float32)
+ *   float32 image [width*height]
+ *   uint16 labels [width*height], written by the worker
+ */
+public class SharedImageBuffer implements Closeable {
+
+    public static final int MAGIC = 0x42414e44;
+    public static final int HEADER_SIZE = 16;
+    public static final int DTYPE_FLOAT32 = 0;
+
+    private final Path path;
+    private final FileChannel channel;
+    private MappedByteBuffer buffer = null;
+    private int width = -1, height = -1;
+
+
+    public SharedImageBuffer() throws IOException {
+        File shm = new File("/dev/shm");
+        path = (shm.isDirectory() && shm.canWrite()) ? Files.createTempFile(shm.toPath(), "omnipose", ".buf") :
+                Files.createTempFile("omnipose", ".buf");
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+
+    public String getPath() {
+        return path.toString();
+    }
+
+
+    /**
+     * Write image header and pixels
+     */
+    public void writeImage(float[] pixels, int width, int height) throws IOException {
+        if (buffer == null || width != this.width || height != this.height) {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + 6L*width*height);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            this.width = width;
+            this.height = height;
+        }
+        buffer.putInt(0, MAGIC).putInt(4, width).putInt(8, height).putInt(12, DTYPE_FLOAT32);
+        buffer.position(HEADER_SIZE);
+        buffer.asFloatBuffer().put(pixels, 0, width*height);
+    }
+
+
+    /**
+     * Read labels written by the worker
+     */
+    public void readLabels(short[] labels) {
+        buffer.position(HEADER_SIZE + 4*width*height);
+        buffer.asShortBuffer().get(labels, 0, width*height);
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        buffer = null;
+        channel.close();
+        Files.deleteIfExists(path);
+    }
+}
@@ -0,0 +1,107 @@
+package DNA_in_bacteria_Tools;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+
+/**
+ * Binary results file (results.bin), stored by column with one block per frame
+ *
+ * Layout (little-endian):
+ *   header: 8 bytes magic "DNARES" 0 1, int number of columns,
+ *           then for each column: byte type, byte 1 if the value is the same for all rows of a block else 0,
+ *           short name length, UTF-8 name
+ *   block:  int block length (bytes after this int), int number of rows,
+ *           then for each column: one value if it is the same for all rows, else one value per row
+ * Types: 0 = int32, 1 = float32, 2 = float64, 3 = string (short length + UTF-8 bytes)
+ * Missing DNA values of bacteria without DNA are NaN.
+ * @author Orion-CIRB
+ */
+public class ColumnarResultsSink extends BufferedResultsSink {
+
+    public static final byte[] MAGIC = {'D', 'N', 'A', 'R', 'E', 'S', 0, 1};
+    public static final int INT32 = 0, FLOAT32 = 1, FLOAT64 = 2, STRING = 3;
+    // Types and constant flags of FrameResults.COLUMNS
+    private static final int[] TYPES = {STRING, INT32, FLOAT32, FLOAT64, FLOAT64, INT32, FLOAT32, FLOAT64, FLOAT64, FLOAT64};
+    private static final boolean[] CONSTANT = {true, true, false, false, false, false, false, false, false, false};
+
+
+    public ColumnarResultsSink(File file, boolean append) throws IOException {
+        super(file, append);
+        if (position() == 0) {
+            putBytes(MAGIC);
+            putInt(FrameResults.COLUMNS.length);
+            for (int c = 0; c < FrameResults.COLUMNS.length; c++) {
+                putByte(TYPES[c]);
+                putByte(CONSTANT[c] ? 1 : 0);
+                putString(FrameResults.COLUMNS[c]);
+            }
+        }
+    }
+
+
+    @Override
+    public void write(FrameResults rows) {
+        // Block length is known once the block is encoded
+        int start = count;
+        putInt(0);
+        putInt(rows.size);
+        putString(rows.imgName);
+        putInt(rows.time);
+        for (int i = 0; i < rows.size; i++)
+            putFloat(rows.bactLabel[i]);
+        for (int i = 0; i < rows.size; i++)
+            putDouble(rows.bactSurf[i]);
+        for (int i = 0; i < rows.size; i++)
+            putDouble(rows.bactLength[i]);
+        for (int i = 0; i < rows.size; i++)
+            putInt(rows.dnaNb[i]);
+        for (int i = 0; i < rows.size; i++)
+            putFloat(rows.dnaLabel[i]);
+        for (int i = 0; i < rows.size; i++)
+            putDouble(rows.dnaSurf[i]);
+        for (int i = 0; i < rows.size; i++)
+            putDouble(rows.dnaInt[i]);
+        for (int i = 0; i < rows.size; i++)
+            putDouble(rows.dnaDist[i]);
+        int length = count - start - 4;
+        int end = count;
+        count = start;
+        putInt(length);
+        count = end;
+    }
+
+
+    private void putString(String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        putShort(bytes.length);
+        putBytes(bytes);
+    }
+
+
+    /**
+     * Header length of a results file
+     */
+    public static long headerLength(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC))
+                throw new IOException(file + " is not a results file");
+            long length = MAGIC.length + 4;
+            int nbColumns = Integer.reverseBytes(in.readInt());
+            for (int c = 0; c < nbColumns; c++) {
+                in.readUnsignedByte();
+                in.readUnsignedByte();
+                int nameLength = Short.toUnsignedInt(Short.reverseBytes(in.readShort()));
+                in.readFully(new byte[nameLength]);
+                length += 4 + nameLength;
+            }
+            return(length);
+        }
+    }
+}
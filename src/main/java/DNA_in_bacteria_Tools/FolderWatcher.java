@@ -0,0 +1,148 @@
+package DNA_in_bacteria_Tools;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FilenameUtils;
+
+
+/**
+ * Image files written in a folder during an acquisition
+ * Files already in the folder and files created or modified later are given once their size and modification time
+ * did not change for a while, so files still written are not read. A file modified again after being given
+ * (new time points or series) is given again once stable.
+ * Files have the extension found by Tools.findImageType, found at the first image file if the folder is empty.
+ * @author Orion-CIRB
+ */
+public class FolderWatcher implements Closeable {
+
+    private final Tools tools;
+    private final Path dir;
+    private final long stableMs;
+    private final WatchService watcher;
+    private String ext;
+    // File -> size, modification time and time of the last change, for files not stable yet
+    private final LinkedHashMap<Path, long[]> candidates = new LinkedHashMap<>();
+    // File -> size and modification time when it was given
+    private final HashMap<Path, long[]> given = new HashMap<>();
+
+
+    /**
+     * @param stableMs time without change before a file is given
+     */
+    public FolderWatcher(Tools tools, String dir, long stableMs) throws IOException {
+        this.tools = tools;
+        this.dir = Paths.get(dir);
+        this.stableMs = stableMs;
+        ext = tools.findImageType(new File(dir));
+        // Watch before listing, so files created in between are not missed
+        watcher = FileSystems.getDefault().newWatchService();
+        this.dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        scan();
+    }
+
+
+    /**
+     * Wait for new stable files
+     * @param idleMs time without any new or modified file before stopping
+     * @return stable files in name order, null if the folder was idle
+     * @throws InterruptedException
+     */
+    public ArrayList<String> next(long idleMs) throws IOException, InterruptedException {
+        long lastChange = System.currentTimeMillis();
+        while (true) {
+            WatchKey key = watcher.poll(Math.max(1, Math.min(1000, stableMs)), TimeUnit.MILLISECONDS);
+            if (key != null) {
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+                        scan();
+                    else
+                        add(dir.resolve((Path) event.context()));
+                }
+                key.reset();
+            }
+
+            long now = System.currentTimeMillis();
+            ArrayList<String> stable = new ArrayList<>();
+            for (Iterator<Map.Entry<Path, long[]>> it = candidates.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<Path, long[]> candidate = it.next();
+                long[] state = candidate.getValue();
+                long size, modified;
+                try {
+                    size = Files.size(candidate.getKey());
+                    modified = Files.getLastModifiedTime(candidate.getKey()).toMillis();
+                } catch (NoSuchFileException ex) {
+                    it.remove();
+                    continue;
+                }
+                if (size != state[0] || modified != state[1]) {
+                    state[0] = size;
+                    state[1] = modified;
+                    state[2] = now;
+                    lastChange = now;
+                } else if (now - state[2] >= stableMs) {
+                    it.remove();
+                    long[] previous = given.get(candidate.getKey());
+                    if (previous == null || previous[0] != size || previous[1] != modified) {
+                        given.put(candidate.getKey(), new long[] {size, modified});
+                        stable.add(candidate.getKey().toString());
+                    }
+                }
+            }
+            if (!stable.isEmpty()) {
+                Collections.sort(stable);
+                return(stable);
+            }
+            if (candidates.isEmpty() && now - lastChange >= idleMs)
+                return(null);
+        }
+    }
+
+
+    /**
+     * Add all image files of the folder
+     */
+    private void scan() throws IOException {
+        String[] files = dir.toFile().list();
+        if (files == null)
+            throw new IOException("Folder " + dir + " can't be read");
+        for (String name : files)
+            add(dir.resolve(name));
+    }
+
+
+    /**
+     * Add an image file to check until it is stable
+     */
+    private void add(Path file) {
+        String name = file.getFileName().toString();
+        if (name.startsWith(".") || Files.isDirectory(file))
+            return;
+        if (ext.isEmpty())
+            ext = tools.findImageType(dir.toFile());
+        if (!ext.isEmpty() && FilenameUtils.getExtension(name).equals(ext))
+            candidates.putIfAbsent(file, new long[] {-1, -1, System.currentTimeMillis()});
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        watcher.close();
+    }
+}
@@ -0,0 +1,63 @@
+package DNA_in_bacteria_Tools;
+
+import ij.ImagePlus;
+import java.io.File;
+
+
+/**
+ * One time point of one series of an image file
+ * @author Orion-CIRB
+ */
+public class Frame {
+
+    public final String file;
+    // Index of the file in the analyzed files
+    public final int fileIndex;
+    public final int series;
+    public final String seriesName;
+    public final int time;
+
+    // Z-projections
+    public ImagePlus imgBact;
+    public ImagePlus imgDna;
+
+    // Detections
+    public LabelObjects bacts;
+    public LabelObjects dnas;
+
+    // Memory reserved in the memory budget
+    public long memory = 0;
+
+
+    public Frame(String file, int fileIndex, int series, String seriesName, int time) {
+        this.file = file;
+        this.fileIndex = fileIndex;
+        this.series = series;
+        this.seriesName = seriesName;
+        this.time = time;
+    }
+
+
+    /**
+     * Name used for the results images
+     */
+    public String getName() {
+        return(seriesName + "_t" + (time+1));
+    }
+
+
+    /**
+     * Identifies the frame across runs and machines: file name, series and time
+     */
+    public String getKey() {
+        return(new File(file).getName() + "\t" + series + "\t" + time);
+    }
+
+
+    /**
+     * Shard the frame belongs to, the same on all machines
+     */
+    public int getShard(int nbShards) {
+        return(Math.floorMod(getKey().hashCode(), nbShards));
+    }
+}
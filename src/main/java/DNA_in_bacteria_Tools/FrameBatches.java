@@ -0,0 +1,86 @@
+package DNA_in_bacteria_Tools;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+
+/**
+ * Frames handed from the open stage to the segmentation stage, grouped in Omnipose batches
+ * A batch ends when it is full, after the last frame, or when the open stage can't reserve memory for its next frame:
+ * the frames already opened are then segmented and measured, which gives their memory back,
+ * instead of waiting for a full batch whose frames can't be opened.
+ * @author Orion-CIRB
+ */
+public class FrameBatches {
+
+    // Ends the current batch
+    private static final Frame FLUSH = new Frame(null, -1, -1, null, -1);
+    // Marks the end of the frames
+    private static final Frame END = new Frame(null, -1, -1, null, -1);
+
+    private final BlockingQueue<Frame> queue;
+    private final int batchSize;
+    private boolean ended = false;
+
+
+    /**
+     * @param queueDepth max number of opened frames waiting for the segmentation stage
+     * @param batchSize max number of frames of a batch, 0 = all frames
+     */
+    public FrameBatches(int queueDepth, int batchSize) {
+        queue = new ArrayBlockingQueue<>(Math.max(1, queueDepth));
+        this.batchSize = (batchSize > 0) ? batchSize : Integer.MAX_VALUE;
+    }
+
+
+    /**
+     * Reserve memory for the next frame, the current batch is ended first if the budget is full
+     * @throws InterruptedException
+     */
+    public void reserve(MemoryBudget budget, long bytes) throws InterruptedException {
+        if (!budget.tryAcquire(bytes)) {
+            queue.put(FLUSH);
+            budget.acquire(bytes);
+        }
+    }
+
+
+    /**
+     * Add an opened frame
+     * @throws InterruptedException
+     */
+    public void put(Frame frame) throws InterruptedException {
+        queue.put(frame);
+    }
+
+
+    /**
+     * No more frames
+     * @throws InterruptedException
+     */
+    public void end() throws InterruptedException {
+        queue.put(END);
+    }
+
+
+    /**
+     * Wait for the next batch
+     * @return frames of the batch, null after the last batch
+     * @throws InterruptedException
+     */
+    public ArrayList<Frame> next() throws InterruptedException {
+        ArrayList<Frame> batch = new ArrayList<>();
+        while (!ended && batch.size() < batchSize) {
+            Frame frame = queue.take();
+            if (frame == END)
+                ended = true;
+            else if (frame == FLUSH) {
+                if (!batch.isEmpty())
+                    break;
+            } else
+                batch.add(frame);
+        }
+        return(batch.isEmpty() ? null : batch);
+    }
+}
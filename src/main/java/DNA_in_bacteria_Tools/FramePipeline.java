@@ -0,0 +1,311 @@
+package DNA_in_bacteria_Tools;
+
+import ij.ImagePlus;
+import ij.plugin.ZProjector;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import loci.formats.FormatTools;
+import loci.plugins.util.ImageProcessorReader;
+
+
+/**
+ * Process frames in three stages, each one on its own thread:
+ * opening + Z projection -> Omnipose segmentation -> DNA/bacteria link + results saving
+ * Stages are connected with bounded queues, so frame t+1 is opened while frame t is segmented
+ * and frame t-1 is measured. Each stage handles frames in order, so results are written in frames order.
+ * Results images are drawn and saved in the background by the overlay writer.
+ * Time of each step of each frame is added to the run report.
+ * @author Orion-CIRB
+ */
+public class FramePipeline {
+
+    // Marks the end of the frames list in the queues
+    private static final Frame END = new Frame(null, -1, -1, null, -1);
+
+    private final Tools tools;
+    private final ImageProcessorReader reader;
+    private final int indexBact;
+    private final int indexDna;
+    private final String outDir;
+    private final OrderedResults results;
+    private final RunReport report;
+    private final OverlayWriter overlays;
+    // Memory reserved by frames of this pipeline
+    private final AtomicLong reserved = new AtomicLong();
+
+
+    /**
+     * @param reader reader opened on the file of the frames
+     */
+    public FramePipeline(Tools tools, ImageProcessorReader reader, int indexBact, int indexDna, String outDir, OrderedResults results, RunReport report, OverlayWriter overlays) {
+        this.tools = tools;
+        this.reader = reader;
+        this.indexBact = indexBact;
+        this.indexDna = indexDna;
+        this.outDir = outDir;
+        this.results = results;
+        this.report = report;
+        this.overlays = overlays;
+    }
+
+
+    /**
+     * Process frames and write their results in order
+     * @throws java.lang.Exception first error raised by a stage
+     */
+    public void run(List<Frame> frames) throws Exception {
+        FrameBatches projected = new FrameBatches(tools.projectionQueueDepth, tools.omniposeBatchSize);
+        BlockingQueue<Frame> segmented = new ArrayBlockingQueue<>(Math.max(1, tools.measureQueueDepth));
+
+        ExecutorService[] executors = {Executors.newSingleThreadExecutor(), Executors.newSingleThreadExecutor(),
+            Executors.newSingleThreadExecutor()};
+        BlockingQueue<Future<Void>> finished = new LinkedBlockingQueue<>();
+        List<Future<Void>> stages = new ArrayList<>();
+        try {
+            stages.add(submit(executors[0], () -> open(frames, projected), finished));
+            stages.add(submit(executors[1], () -> segment(projected, segmented), finished));
+            stages.add(submit(executors[2], () -> measure(segmented), finished));
+
+            // Wait for all stages, stop everything as soon as one of them fails
+            for (int i = 0; i < stages.size(); i++) {
+                try {
+                    finished.take().get();
+                } catch (ExecutionException ex) {
+                    throw (ex.getCause() instanceof Exception) ? (Exception) ex.getCause() : ex;
+                }
+            }
+        } finally {
+            for (Future<Void> stage : stages)
+                stage.cancel(true);
+            for (ExecutorService executor : executors)
+                executor.shutdownNow();
+            // Give back memory of frames left in the queues
+            tools.memoryBudget.release(reserved.getAndSet(0));
+        }
+    }
+
+
+    /**
+     * Run a stage on its executor, and add it to the finished queue when it ends
+     */
+    private Future<Void> submit(ExecutorService executor, Callable<Void> stage, BlockingQueue<Future<Void>> finished) {
+        FutureTask<Void> task = new FutureTask<Void>(stage) {
+            @Override
+            protected void done() {
+                finished.add(this);
+            }
+        };
+        executor.execute(task);
+        return task;
+    }
+
+
+    /**
+     * Open bacteria and DNA channels and do their Z projection
+     */
+    private Void open(List<Frame> frames, FrameBatches projected) throws Exception {
+        StreamingZProjector projector = new StreamingZProjector(ZProjector.AVG_METHOD);
+        try (PlanePrefetcher prefetcher = prefetch(frames)) {
+            projector.setPrefetcher(prefetcher);
+            open(frames, projected, projector);
+        }
+        projected.end();
+        return null;
+    }
+
+
+    /**
+     * Start reading ahead planes of the frames, in the order they are projected
+     * @return null if planes are read when needed
+     */
+    private PlanePrefetcher prefetch(List<Frame> frames) {
+        if (tools.prefetchFrames <= 0 || tools.tileSize > 0 || frames.isEmpty())
+            return(null);
+        PlanePrefetcher prefetcher = new PlanePrefetcher(tools, frames.get(0).file, tools.prefetchThreads, tools.prefetchFrames,
+                (long) tools.prefetchMB*1024*1024);
+        for (int f = 0; f < frames.size(); f++) {
+            Frame frame = frames.get(f);
+            reader.setSeries(frame.series);
+            long bytes = (long) reader.getSizeX() * reader.getSizeY() * FormatTools.getBytesPerPixel(reader.getPixelType());
+            for (int channel : new int[] {indexBact, indexDna}) {
+                for (int z = 0; z < reader.getSizeZ(); z++)
+                    prefetcher.add(frame.series, reader.getIndex(z, channel, frame.time), f, bytes);
+            }
+        }
+        return(prefetcher);
+    }
+
+
+    private void open(List<Frame> frames, FrameBatches projected, StreamingZProjector projector) throws Exception {
+        for (Frame frame : frames) {
+            tools.print("--- OPENING IMAGE " + frame.seriesName + " at time " + (frame.time+1) + " ---");
+            reader.setSeries(frame.series);
+            // Projections, label images and measurement images of the frame
+            // If they don't fit, frames already opened are segmented without waiting for a full batch
+            RunReport.Timer timer = RunReport.start();
+            frame.memory = (long) reader.getSizeX() * reader.getSizeY() * 32;
+            projected.reserve(tools.memoryBudget, frame.memory);
+            reserved.addAndGet(frame.memory);
+            report.add(frame, "open wait", timer, 0);
+            // Planes reading and Z projection
+            timer = RunReport.start();
+            long bytesRead = projector.getBytesRead();
+            frame.imgBact = projector.project(reader, indexBact, frame.time, tools.cal, tools.tileSize);
+            frame.imgDna = projector.project(reader, indexDna, frame.time, tools.cal, tools.tileSize);
+            report.add(frame, "open", timer, projector.getBytesRead() - bytesRead);
+            projected.put(frame);
+        }
+    }
+
+
+    /**
+     * Detect bacteria and DNA with Omnipose, by batches of frames
+     */
+    private Void segment(FrameBatches projected, BlockingQueue<Frame> segmented) throws Exception {
+        // Wait until batch is full, all frames are opened, or the next frame doesn't fit in memory
+        for (ArrayList<Frame> batch = projected.next(); batch != null; batch = projected.next()) {
+
+            // Tiles of all frames of the batch are segmented together
+            ArrayList<TileGrid> grids = new ArrayList<>();
+            ArrayList<ImagePlus> imgsBact = new ArrayList<>();
+            ArrayList<ImagePlus> imgsDna = new ArrayList<>();
+            for (Frame frame : batch) {
+                TileGrid grid = new TileGrid(frame.imgBact.getWidth(), frame.imgBact.getHeight(), tools.tileSize, tools.tileOverlap);
+                grids.add(grid);
+                imgsBact.addAll(grid.crop(frame.imgBact));
+                imgsDna.addAll(grid.crop(frame.imgDna));
+            }
+            RunReport.Timer timer = RunReport.start();
+            tools.print("- Detecting bacteria in " + batch.size() + " frames (" + imgsBact.size() + " tiles) -");
+            ArrayList<ImagePlus> tileMasksBact = tools.omniposeMasks(imgsBact, tools.omniposeBactModel);
+            tools.print("- Detecting DNA in " + batch.size() + " frames (" + imgsDna.size() + " tiles) -");
+            ArrayList<ImagePlus> tileMasksDna;
+            try {
+                tileMasksDna = tools.omniposeMasks(imgsDna, tools.omniposeDnaModel);
+            } catch (IOException ex) {
+                for (ImagePlus mask : tileMasksBact)
+                    tools.flush_close(mask);
+                throw ex;
+            }
+            ArrayList<ImagePlus> masksBact = stitch(grids, imgsBact, tileMasksBact);
+            ArrayList<ImagePlus> masksDna = stitch(grids, imgsDna, tileMasksDna);
+            // Omnipose time is shared by the frames of the batch
+            long wall = (System.nanoTime() - timer.wall) / batch.size();
+            long cpu = (timer.cpu < 0) ? -1 : (RunReport.start().cpu - timer.cpu) / batch.size();
+            for (int n = 0; n < batch.size(); n++) {
+                Frame frame = batch.get(n);
+                long inference = (long) ((tools.omniposeInferenceTime(masksBact.get(n)) + tools.omniposeInferenceTime(masksDna.get(n))) * 1e9);
+                report.add(frame, "segment", wall, cpu, 0);
+                report.add(frame, "segment inference", Math.min(inference, wall), -1, 0);
+                // Process start, model loading, images transfer
+                report.add(frame, "segment start", Math.max(0, wall - inference), -1, 0);
+
+                timer = RunReport.start();
+                frame.bacts = tools.filterDetections(masksBact.get(n), tools.minBactSurface, tools.maxBactSurface, true);
+                frame.dnas = tools.filterDetections(masksDna.get(n), tools.minDnaSurface, tools.maxDnaSurface, false);
+                tools.flush_close(masksBact.get(n));
+                tools.flush_close(masksDna.get(n));
+                report.add(frame, "filter", timer, 0);
+                segmented.put(frame);
+            }
+        }
+        segmented.put(END);
+        return null;
+    }
+
+
+    /**
+     * Label image of each frame from the masks of its tiles, tiles images and masks are closed
+     */
+    private ArrayList<ImagePlus> stitch(List<TileGrid> grids, List<ImagePlus> tiles, List<ImagePlus> tileMasks) {
+        ArrayList<ImagePlus> masks = new ArrayList<>(grids.size());
+        int start = 0;
+        for (TileGrid grid : grids) {
+            List<ImagePlus> frameMasks = tileMasks.subList(start, start + grid.size());
+            masks.add(grid.stitch(frameMasks));
+            if (grid.size() > 1) {
+                for (int t = start; t < start + grid.size(); t++) {
+                    tools.flush_close(tiles.get(t));
+                    tools.flush_close(tileMasks.get(t));
+                }
+            }
+            start += grid.size();
+        }
+        return(masks);
+    }
+
+
+    /**
+     * Find DNA in bacteria, save results and images
+     */
+    private Void measure(BlockingQueue<Frame> segmented) throws Exception {
+        for (Frame frame = segmented.take(); frame != END; frame = segmented.take()) {
+            tools.print("--- ANALYZING IMAGE " + frame.seriesName + " at time " + (frame.time+1) + " ---");
+            System.out.println(frame.bacts.nbObjects + " bacteria found");
+            System.out.println(frame.dnas.nbObjects + " DNA found");
+            RunReport.Timer timer = RunReport.start();
+            tools.dnaBactLink(frame.bacts, frame.dnas);
+            report.add(frame, "link", timer, 0);
+            System.out.println(frame.dnas.nbObjects + " DNA found in bacteria");
+
+            // Save results
+            tools.print("- Saving results -");
+            timer = RunReport.start();
+            FrameResults rows = tools.getResults(frame.bacts, frame.dnas, frame.imgDna, frame.seriesName, frame.time+1);
+            report.add(frame, "measure", timer, 0);
+
+            // Save results images in the background before writing the rows:
+            // a checkpoint waits for the images already submitted, so frames are journaled once their images are saved
+            ImagePlus imgBact = frame.imgBact, imgDna = frame.imgDna;
+            LabelObjects bacts = frame.bacts, dnas = frame.dnas;
+            frame.imgBact = frame.imgDna = null;
+            frame.bacts = frame.dnas = null;
+            // Memory of the frame is given back once its images are closed
+            long memory = frame.memory;
+            reserved.addAndGet(-memory);
+            Runnable close = () -> {
+                tools.flush_close(imgBact);
+                tools.flush_close(imgDna);
+                tools.memoryBudget.release(memory);
+            };
+            if (tools.overlayDue(frame.time) && (!tools.resume || !tools.resultsDrawn(frame.getName(), outDir))) {
+                Frame drawn = frame;
+                timer = RunReport.start();
+                try {
+                    overlays.submit(() -> {
+                        RunReport.Timer drawTimer = RunReport.start();
+                        if (tools.labelOverlays)
+                            tools.saveLabels(imgBact, bacts, dnas, drawn.seriesName, drawn.time+1, outDir);
+                        else
+                            tools.drawResults(imgBact, imgDna, bacts, dnas, drawn.getName(), outDir);
+                        report.add(drawn, "draw", drawTimer, 0);
+                        return null;
+                    }, close);
+                } catch (IOException | InterruptedException ex) {
+                    close.run();
+                    throw ex;
+                }
+                // Time waiting for a free overlay writer
+                report.add(frame, "draw wait", timer, 0);
+            } else {
+                close.run();
+            }
+
+            timer = RunReport.start();
+            results.write(frame, rows);
+            report.add(frame, "write", timer, 0);
+        }
+        return null;
+    }
+}
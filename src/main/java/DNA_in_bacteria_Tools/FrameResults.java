@@ -0,0 +1,79 @@
+package DNA_in_bacteria_Tools;
+
+import java.util.Arrays;
+
+
+/**
+ * Results rows of one frame, stored by column
+ * One row per DNA in a bacterium, or one row per bacterium without DNA (DNA columns are then NaN).
+ * @author Orion-CIRB
+ */
+public class FrameResults {
+
+    public static final String[] COLUMNS = {"Image name", "Time", "# bacterium", "Bacterium surface (µm2)", "Bacterium length (µm)",
+        "DNA number", "# DNA", "DNA surface (µm2)", "DNA total intensity", "DNA center to bacterium center (µm)"};
+
+    // Same for all rows
+    public final String imgName;
+    public final int time;
+
+    public int size = 0;
+    public float[] bactLabel;
+    public double[] bactSurf;
+    public double[] bactLength;
+    public int[] dnaNb;
+    public float[] dnaLabel;
+    public double[] dnaSurf;
+    public double[] dnaInt;
+    public double[] dnaDist;
+
+
+    public FrameResults(String imgName, int time, int capacity) {
+        this.imgName = imgName;
+        this.time = time;
+        capacity = Math.max(capacity, 1);
+        bactLabel = new float[capacity];
+        bactSurf = new double[capacity];
+        bactLength = new double[capacity];
+        dnaNb = new int[capacity];
+        dnaLabel = new float[capacity];
+        dnaSurf = new double[capacity];
+        dnaInt = new double[capacity];
+        dnaDist = new double[capacity];
+    }
+
+
+    /**
+     * Row of a bacterium without DNA
+     */
+    public void add(float bactLabel, double bactSurf, double bactLength) {
+        add(bactLabel, bactSurf, bactLength, 0, Float.NaN, Double.NaN, Double.NaN, Double.NaN);
+    }
+
+
+    /**
+     * Row of a DNA in a bacterium
+     */
+    public void add(float bactLabel, double bactSurf, double bactLength, int dnaNb, float dnaLabel, double dnaSurf, double dnaInt, double dnaDist) {
+        if (size == this.bactLabel.length) {
+            int capacity = 2*size;
+            this.bactLabel = Arrays.copyOf(this.bactLabel, capacity);
+            this.bactSurf = Arrays.copyOf(this.bactSurf, capacity);
+            this.bactLength = Arrays.copyOf(this.bactLength, capacity);
+            this.dnaNb = Arrays.copyOf(this.dnaNb, capacity);
+            this.dnaLabel = Arrays.copyOf(this.dnaLabel, capacity);
+            this.dnaSurf = Arrays.copyOf(this.dnaSurf, capacity);
+            this.dnaInt = Arrays.copyOf(this.dnaInt, capacity);
+            this.dnaDist = Arrays.copyOf(this.dnaDist, capacity);
+        }
+        this.bactLabel[size] = bactLabel;
+        this.bactSurf[size] = bactSurf;
+        this.bactLength[size] = bactLength;
+        this.dnaNb[size] = dnaNb;
+        this.dnaLabel[size] = dnaLabel;
+        this.dnaSurf[size] = dnaSurf;
+        this.dnaInt[size] = dnaInt;
+        this.dnaDist[size] = dnaDist;
+        size++;
+    }
+}
@@ -0,0 +1,136 @@
+package DNA_in_bacteria_Tools;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+
+/**
+ * Frames whose results are saved, to resume an interrupted run
+ * One line per frame: file name, series, time and length of each results file once its rows were written,
+ * so rows of a frame are between the lengths of the previous line and of its line.
+ * @author Orion-CIRB
+ */
+public class Journal {
+
+    private final File file;
+    private final HashSet<String> done = new HashSet<>();
+    // Results files length after the last journaled frame, null if no frame
+    private long[] resultsLengths = null;
+    private final FileOutputStream out;
+    private final BufferedWriter writer;
+
+
+    /**
+     * @param resume keep frames of the previous run, else start a new journal
+     */
+    public Journal(String path, boolean resume) throws IOException {
+        file = new File(path);
+        if (resume && file.exists()) {
+            for (String[] entry : read(file)) {
+                done.add(entry[0] + "\t" + entry[1] + "\t" + entry[2]);
+                resultsLengths = new long[entry.length - 3];
+                for (int i = 0; i < resultsLengths.length; i++)
+                    resultsLengths[i] = Long.parseLong(entry[i+3]);
+            }
+        }
+        out = new FileOutputStream(file, resume);
+        writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    }
+
+
+    /**
+     * Read journal lines: file name, series, time, results files length
+     */
+    public static ArrayList<String[]> read(File file) throws IOException {
+        ArrayList<String[]> entries = new ArrayList<>();
+        String[] lines = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).split("\n", -1);
+        // Last line is empty, or was cut by a crash
+        for (int i = 0; i < lines.length - 1; i++) {
+            String[] fields = lines[i].split("\t");
+            if (fields.length >= 4)
+                entries.add(fields);
+        }
+        return entries;
+    }
+
+
+    public synchronized boolean isDone(Frame frame) {
+        return done.contains(frame.getKey());
+    }
+
+
+    public int nbDone() {
+        return done.size();
+    }
+
+
+    /**
+     * Remove rows of frames that are not in the journal from the results files
+     * If results of the previous run are lost, the journal is emptied and all frames are analyzed again
+     * @param results results files, in the journal order
+     * @return true if results of the previous run are kept, false if results files must be started again
+     */
+    public synchronized boolean restoreResults(File... results) throws IOException {
+        boolean restored = resultsLengths != null && resultsLengths.length == results.length;
+        for (int i = 0; restored && i < results.length; i++)
+            restored = results[i].exists() && results[i].length() >= resultsLengths[i];
+        if (restored) {
+            for (int i = 0; i < results.length; i++)
+                truncate(results[i], resultsLengths[i]);
+            // Remove journal line cut by a crash
+            byte[] journal = Files.readAllBytes(file.toPath());
+            int length = journal.length;
+            while (length > 0 && journal[length-1] != '\n')
+                length--;
+            truncate(file, length);
+        } else {
+            truncate(file, 0);
+            done.clear();
+            resultsLengths = null;
+        }
+        return restored;
+    }
+
+
+    private static void truncate(File file, long length) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            channel.truncate(length);
+        }
+    }
+
+
+    /**
+     * Frame whose rows are written in the results files, the journal line is written on sync
+     */
+    public synchronized void add(Frame frame, long... resultsLengths) throws IOException {
+        done.add(frame.getKey());
+        this.resultsLengths = resultsLengths;
+        writer.write(frame.getKey());
+        for (long length : resultsLengths)
+            writer.write("\t" + length);
+        writer.write("\n");
+    }
+
+
+    /**
+     * Write added frames and wait until they are on the storage device
+     */
+    public synchronized void sync() throws IOException {
+        writer.flush();
+        out.getFD().sync();
+    }
+
+
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+}
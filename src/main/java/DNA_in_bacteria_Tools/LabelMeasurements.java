@@ -0,0 +1,183 @@
+package DNA_in_bacteria_Tools;
+
+import mcib3d.image3d.ImageHandler;
+
+
+/**
+ * Measurements of all objects of a label image, computed by scanning the image
+ * instead of building one measurement object per object and per parameter
+ * Results are stored in primitive arrays indexed by label (index 0 = background, not measured)
+ * Coordinates and distances are in pixels
+ * @author Orion-CIRB
+ */
+public class LabelMeasurements {
+
+    public final int nbLabels;
+    // Number of pixels
+    public final int[] area;
+    // Centroid
+    public final double[] centerX;
+    public final double[] centerY;
+    public final double[] centerZ;
+    // Sum of intensities in the intensity image
+    public final double[] intensitySum;
+    // Max distance between two pixels of the object
+    public final double[] feret;
+
+
+    /**
+     * @param labels label image, with labels from 1 to nbLabels
+     * @param intensity intensity image, null if intensities are not needed
+     */
+    public LabelMeasurements(ImageHandler labels, int nbLabels, ImageHandler intensity) {
+        this.nbLabels = nbLabels;
+        area = new int[nbLabels+1];
+        centerX = new double[nbLabels+1];
+        centerY = new double[nbLabels+1];
+        centerZ = new double[nbLabels+1];
+        intensitySum = new double[nbLabels+1];
+        feret = new double[nbLabels+1];
+
+        // Sums and number of contour pixels of each object
+        int[] contourCount = new int[nbLabels+1];
+        for (int z = 0; z < labels.sizeZ; z++) {
+            for (int y = 0; y < labels.sizeY; y++) {
+                for (int x = 0; x < labels.sizeX; x++) {
+                    int label = (int) labels.getPixel(x, y, z);
+                    if (label <= 0 || label > nbLabels)
+                        continue;
+                    area[label]++;
+                    centerX[label] += x;
+                    centerY[label] += y;
+                    centerZ[label] += z;
+                    if (intensity != null)
+                        intensitySum[label] += intensity.getPixel(x, y, z);
+                    if (isContour(labels, x, y, z, label))
+                        contourCount[label]++;
+                }
+            }
+        }
+        for (int label = 1; label <= nbLabels; label++) {
+            if (area[label] > 0) {
+                centerX[label] /= area[label];
+                centerY[label] /= area[label];
+                centerZ[label] /= area[label];
+            }
+        }
+
+        // Contour pixels coordinates, grouped by label
+        int[] start = new int[nbLabels+2];
+        for (int label = 1; label <= nbLabels; label++)
+            start[label+1] = start[label] + contourCount[label];
+        int[] next = new int[nbLabels+1];
+        System.arraycopy(start, 0, next, 0, nbLabels+1);
+        int[] contourX = new int[start[nbLabels+1]];
+        int[] contourY = new int[start[nbLabels+1]];
+        int[] contourZ = new int[start[nbLabels+1]];
+        for (int z = 0; z < labels.sizeZ; z++) {
+            for (int y = 0; y < labels.sizeY; y++) {
+                for (int x = 0; x < labels.sizeX; x++) {
+                    int label = (int) labels.getPixel(x, y, z);
+                    if (label > 0 && label <= nbLabels && isContour(labels, x, y, z, label)) {
+                        contourX[next[label]] = x;
+                        contourY[next[label]] = y;
+                        contourZ[next[label]] = z;
+                        next[label]++;
+                    }
+                }
+            }
+        }
+
+        // Feret diameter, from the vertices of the convex hull of each object
+        int maxCount = 0;
+        for (int label = 1; label <= nbLabels; label++)
+            maxCount = Math.max(maxCount, contourCount[label]);
+        int[] hull = new int[2*maxCount+1];
+        for (int label = 1; label <= nbLabels; label++)
+            feret[label] = feret(contourX, contourY, contourZ, start[label], start[label+1], hull);
+    }
+
+
+    /**
+     * Max distance between points from to to-1, sorted by z, y then x
+     * The farthest points are vertices of the convex hull, and a vertex of the hull is a vertex of the hull of its Z plane,
+     * so distances are only computed between the vertices of the hulls of the planes, found in one pass over the sorted points.
+     * @param hull buffer of at least 2*(to-from)+1 indexes
+     */
+    static double feret(int[] xs, int[] ys, int[] zs, int from, int to, int[] hull) {
+        int n = 0;
+        for (int i0 = from, i1; i0 < to; i0 = i1) {
+            for (i1 = i0+1; i1 < to && zs[i1] == zs[i0]; i1++);
+            n = planeHull(xs, ys, i0, i1, hull, n);
+        }
+        double maxDist2 = 0;
+        for (int i = 0; i < n; i++) {
+            for (int j = i+1; j < n; j++) {
+                double dx = xs[hull[i]] - xs[hull[j]];
+                double dy = ys[hull[i]] - ys[hull[j]];
+                double dz = zs[hull[i]] - zs[hull[j]];
+                double dist2 = dx*dx + dy*dy + dz*dz;
+                if (dist2 > maxDist2)
+                    maxDist2 = dist2;
+            }
+        }
+        return(Math.sqrt(maxDist2));
+    }
+
+
+    /**
+     * Add the convex hull vertices of points i0 to i1-1 of a plane, sorted by y then x, to the hull indexes
+     * Monotone chain: lower then upper chain, linear for sorted points
+     * @return number of hull indexes
+     */
+    private static int planeHull(int[] xs, int[] ys, int i0, int i1, int[] hull, int n) {
+        if (i1 - i0 < 3) {
+            for (int i = i0; i < i1; i++)
+                hull[n++] = i;
+            return(n);
+        }
+        int first = n;
+        for (int i = i0; i < i1; i++) {
+            while (n - first >= 2 && cross(xs, ys, hull[n-2], hull[n-1], i) <= 0)
+                n--;
+            hull[n++] = i;
+        }
+        int lower = n;
+        for (int i = i1-2; i >= i0; i--) {
+            while (n - lower >= 1 && cross(xs, ys, hull[n-2], hull[n-1], i) <= 0)
+                n--;
+            hull[n++] = i;
+        }
+        // Last point is the first one
+        return(n-1);
+    }
+
+
+    private static long cross(int[] xs, int[] ys, int o, int a, int b) {
+        return((long) (ys[a] - ys[o])*(xs[b] - xs[o]) - (long) (xs[a] - xs[o])*(ys[b] - ys[o]));
+    }
+
+
+    /**
+     * Distance between the centroids of two objects (pixels)
+     */
+    public double centroidDistance(int label, LabelMeasurements other, int otherLabel) {
+        double dx = centerX[label] - other.centerX[otherLabel];
+        double dy = centerY[label] - other.centerY[otherLabel];
+        double dz = centerZ[label] - other.centerZ[otherLabel];
+        return(Math.sqrt(dx*dx + dy*dy + dz*dz));
+    }
+
+
+    /**
+     * A pixel is on the contour if one of its 6 neighbours is outside the object
+     */
+    private boolean isContour(ImageHandler labels, int x, int y, int z, int label) {
+        return (x == 0 || (int) labels.getPixel(x-1, y, z) != label)
+            || (x == labels.sizeX-1 || (int) labels.getPixel(x+1, y, z) != label)
+            || (y == 0 || (int) labels.getPixel(x, y-1, z) != label)
+            || (y == labels.sizeY-1 || (int) labels.getPixel(x, y+1, z) != label)
+            || (labels.sizeZ > 1 && (z == 0 || (int) labels.getPixel(x, y, z-1) != label))
+            || (labels.sizeZ > 1 && (z == labels.sizeZ-1 || (int) labels.getPixel(x, y, z+1) != label));
+    }
+}
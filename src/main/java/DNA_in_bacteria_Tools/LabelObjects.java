@@ -0,0 +1,249 @@
+package DNA_in_bacteria_Tools;
+
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.Arrays;
+
+
+/**
+ * Objects of a 2D label image, stored as runs of pixels in primitive arrays
+ * Built in one scan of the image: each object is a list of runs (row, first x, last x) with its area and bounding box.
+ * Filters, link to parent objects, relabeling and drawing are done on the arrays, without one object per pixel.
+ * Objects are in ascending order of their label in the image.
+ * @author Orion-CIRB
+ */
+public class LabelObjects {
+
+    public final int width;
+    public final int height;
+    public int nbObjects;
+
+    // Per object, in objects order
+    public int[] label;
+    public int[] area;
+    public int[] minX, maxX, minY, maxY;
+    // Runs of an object: indexes runStart[i] to runStart[i] + runCount[i] - 1 in the runs arrays
+    public int[] runStart;
+    public int[] runCount;
+    // Label of the object containing this object (DNA -> mother bacterium), 0 if none
+    public int[] parent;
+
+    // Runs of all objects, grouped by object
+    public final int[] runY;
+    public final int[] runX0;
+    public final int[] runX1;
+
+
+    /**
+     * @param labels label image, background = 0
+     */
+    public LabelObjects(ImageProcessor labels) {
+        width = labels.getWidth();
+        height = labels.getHeight();
+
+        // Runs in raster order: label, row, first x, last x
+        int nbRuns = 0;
+        int[] runs = new int[1024];
+        int maxLabel = 0;
+        for (int y = 0; y < height; y++) {
+            int offset = y*width;
+            for (int x = 0; x < width; ) {
+                int value = (int) labels.getf(offset + x);
+                if (value <= 0) {
+                    x++;
+                    continue;
+                }
+                int x0 = x;
+                while (x+1 < width && (int) labels.getf(offset + x + 1) == value)
+                    x++;
+                if (4*nbRuns + 4 > runs.length)
+                    runs = Arrays.copyOf(runs, 2*runs.length);
+                runs[4*nbRuns] = value;
+                runs[4*nbRuns+1] = y;
+                runs[4*nbRuns+2] = x0;
+                runs[4*nbRuns+3] = x;
+                nbRuns++;
+                maxLabel = Math.max(maxLabel, value);
+                x++;
+            }
+        }
+
+        // Object index of each label, in ascending label order
+        int[] runsOfLabel = new int[maxLabel+1];
+        for (int r = 0; r < nbRuns; r++)
+            runsOfLabel[runs[4*r]]++;
+        int[] index = new int[maxLabel+1];
+        nbObjects = 0;
+        for (int l = 1; l <= maxLabel; l++)
+            index[l] = (runsOfLabel[l] > 0) ? nbObjects++ : -1;
+        label = new int[nbObjects];
+        area = new int[nbObjects];
+        minX = new int[nbObjects];
+        maxX = new int[nbObjects];
+        minY = new int[nbObjects];
+        maxY = new int[nbObjects];
+        runStart = new int[nbObjects];
+        runCount = new int[nbObjects];
+        parent = new int[nbObjects];
+        for (int l = 1, start = 0; l <= maxLabel; l++) {
+            if (index[l] < 0)
+                continue;
+            int i = index[l];
+            label[i] = l;
+            runStart[i] = start;
+            start += runsOfLabel[l];
+            minX[i] = minY[i] = Integer.MAX_VALUE;
+            maxX[i] = maxY[i] = -1;
+        }
+
+        // Runs grouped by object, with area and bounding box
+        runY = new int[nbRuns];
+        runX0 = new int[nbRuns];
+        runX1 = new int[nbRuns];
+        for (int r = 0; r < nbRuns; r++) {
+            int i = index[runs[4*r]];
+            int k = runStart[i] + runCount[i]++;
+            int y = runs[4*r+1];
+            int x0 = runs[4*r+2];
+            int x1 = runs[4*r+3];
+            runY[k] = y;
+            runX0[k] = x0;
+            runX1[k] = x1;
+            area[i] += x1 - x0 + 1;
+            minX[i] = Math.min(minX[i], x0);
+            maxX[i] = Math.max(maxX[i], x1);
+            minY[i] = Math.min(minY[i], y);
+            maxY[i] = Math.max(maxY[i], y);
+        }
+    }
+
+
+    /**
+     * Remove objects touching the image borders
+     */
+    public LabelObjects excludeBorders() {
+        int n = 0;
+        for (int i = 0; i < nbObjects; i++) {
+            if (minX[i] > 0 && minY[i] > 0 && maxX[i] < width-1 && maxY[i] < height-1)
+                move(i, n++);
+        }
+        nbObjects = n;
+        return(this);
+    }
+
+
+    /**
+     * Keep objects with an area between min and max, in pixels
+     */
+    public LabelObjects filterSize(double min, double max) {
+        int n = 0;
+        for (int i = 0; i < nbObjects; i++) {
+            if (area[i] >= min && area[i] <= max)
+                move(i, n++);
+        }
+        nbObjects = n;
+        return(this);
+    }
+
+
+    /**
+     * Keep objects inside a parent object
+     */
+    public LabelObjects filterParent() {
+        int n = 0;
+        for (int i = 0; i < nbObjects; i++) {
+            if (parent[i] != 0)
+                move(i, n++);
+        }
+        nbObjects = n;
+        return(this);
+    }
+
+
+    /**
+     * Label objects from 1 to nbObjects, in objects order
+     */
+    public LabelObjects relabel() {
+        for (int i = 0; i < nbObjects; i++)
+            label[i] = i+1;
+        return(this);
+    }
+
+
+    /**
+     * Centroid of an object, in pixels
+     * @return x and y
+     */
+    public double[] centroid(int i) {
+        double sumX = 0, sumY = 0;
+        for (int k = runStart[i]; k < runStart[i] + runCount[i]; k++) {
+            int n = runX1[k] - runX0[k] + 1;
+            sumX += n*(runX0[k] + runX1[k])/2.0;
+            sumY += (double) n*runY[k];
+        }
+        return(new double[] {sumX/area[i], sumY/area[i]});
+    }
+
+
+    /**
+     * Draw an object in a bigger label image, only on its background pixels
+     * @param dx x of this image in the target image
+     * @param dy y of this image in the target image
+     */
+    public void paste(int i, float value, float[] target, int targetWidth, int dx, int dy) {
+        for (int k = runStart[i]; k < runStart[i] + runCount[i]; k++) {
+            int offset = (runY[k] + dy)*targetWidth + dx;
+            for (int x = runX0[k]; x <= runX1[k]; x++) {
+                if (target[offset + x] == 0)
+                    target[offset + x] = value;
+            }
+        }
+    }
+
+
+    private void move(int from, int to) {
+        if (from == to)
+            return;
+        label[to] = label[from];
+        area[to] = area[from];
+        minX[to] = minX[from];
+        maxX[to] = maxX[from];
+        minY[to] = minY[from];
+        maxY[to] = maxY[from];
+        runStart[to] = runStart[from];
+        runCount[to] = runCount[from];
+        parent[to] = parent[from];
+    }
+
+
+    /**
+     * Draw the objects with their label in an image of the same size
+     */
+    public ImageProcessor draw(ImageProcessor ip) {
+        for (int i = 0; i < nbObjects; i++) {
+            for (int k = runStart[i]; k < runStart[i] + runCount[i]; k++) {
+                int offset = runY[k]*width;
+                for (int x = runX0[k]; x <= runX1[k]; x++)
+                    ip.setf(offset + x, label[i]);
+            }
+        }
+        return(ip);
+    }
+
+
+    /**
+     * Label image of the objects, 16-bit if labels fit, else 32-bit
+     */
+    public ImagePlus toImage(Calibration cal) {
+        int maxLabel = 0;
+        for (int i = 0; i < nbObjects; i++)
+            maxLabel = Math.max(maxLabel, label[i]);
+        ImageProcessor ip = (maxLabel <= 65535) ? new ShortProcessor(width, height) : new FloatProcessor(width, height);
+        ImagePlus img = new ImagePlus("labels", draw(ip));
+        img.setCalibration(cal);
+        return(img);
+    }
+}
@@ -0,0 +1,222 @@
+package DNA_in_bacteria_Tools;
+
+import ij.process.ShortProcessor;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/**
+ * Bacteria and DNA label masks of all time points of a series, in one multi-page TIFF
+ * Each page is a 16-bit deflate-compressed mask named "t<time>_bacteria" or "t<time>_DNA" (PageName tag),
+ * appended at the end of the file and linked to the previous page once it is written,
+ * so the file stays readable if the run stops. If a time is saved twice, its last pages are used.
+ * The file is a plain TIFF stack, also readable by ImageJ and Bio-Formats.
+ * @author Orion-CIRB
+ */
+public class LabelStack {
+
+    private static final int NB_TAGS = 10;
+
+    private final File file;
+    // Position of the offset to set when the next page is added
+    private long nextOffsetPosition = -1;
+
+
+    /**
+     * @param append add pages to the existing file, else the file is started again
+     */
+    public LabelStack(File file, boolean append) {
+        this.file = file;
+        if (!append)
+            file.delete();
+    }
+
+
+    /**
+     * Add the bacteria and DNA masks of a time point
+     * @param time time point, starting at 1 as in the results table
+     */
+    public synchronized void append(int time, int width, int height, short[] bactLabels, short[] dnaLabels) throws IOException {
+        byte[] bactPage = deflate(bactLabels);
+        byte[] dnaPage = deflate(dnaLabels);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (nextOffsetPosition < 0)
+                nextOffsetPosition = lastOffsetPosition(raf);
+            appendPage(raf, "t" + time + "_bacteria", width, height, bactPage);
+            appendPage(raf, "t" + time + "_DNA", width, height, dnaPage);
+        }
+    }
+
+
+    /**
+     * Write a page at the end of the file, then link it from the previous one
+     */
+    private void appendPage(RandomAccessFile raf, String name, int width, int height, byte[] data) throws IOException {
+        byte[] pageName = (name + "\0").getBytes(StandardCharsets.US_ASCII);
+        long dataOffset = raf.length() + (raf.length() & 1);
+        long ifdOffset = dataOffset + data.length + (data.length & 1);
+        long nameOffset = ifdOffset + 2 + 12*NB_TAGS + 4;
+
+        ByteBuffer ifd = ByteBuffer.allocate(2 + 12*NB_TAGS + 4 + pageName.length).order(ByteOrder.LITTLE_ENDIAN);
+        ifd.putShort((short) NB_TAGS);
+        putTag(ifd, 256, 4, 1, width);                  // ImageWidth
+        putTag(ifd, 257, 4, 1, height);                 // ImageLength
+        putTag(ifd, 258, 3, 1, 16);                     // BitsPerSample
+        putTag(ifd, 259, 3, 1, 8);                      // Compression: deflate
+        putTag(ifd, 262, 3, 1, 1);                      // PhotometricInterpretation: black is zero
+        putTag(ifd, 273, 4, 1, dataOffset);             // StripOffsets
+        putTag(ifd, 277, 3, 1, 1);                      // SamplesPerPixel
+        putTag(ifd, 278, 4, 1, height);                 // RowsPerStrip
+        putTag(ifd, 279, 4, 1, data.length);            // StripByteCounts
+        putTag(ifd, 285, 2, pageName.length, nameOffset); // PageName
+        ifd.putInt(0);
+        ifd.put(pageName);
+
+        raf.seek(dataOffset);
+        raf.write(data);
+        if ((data.length & 1) != 0)
+            raf.write(0);
+        raf.write(ifd.array());
+        // Link the page once it is complete
+        raf.seek(nextOffsetPosition);
+        raf.write(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt((int) ifdOffset).array());
+        nextOffsetPosition = ifdOffset + 2 + 12*NB_TAGS;
+    }
+
+
+    private static void putTag(ByteBuffer ifd, int tag, int type, int count, long value) {
+        ifd.putShort((short) tag);
+        ifd.putShort((short) type);
+        ifd.putInt(count);
+        if (type == 3) {
+            ifd.putShort((short) value);
+            ifd.putShort((short) 0);
+        } else {
+            ifd.putInt((int) value);
+        }
+    }
+
+
+    /**
+     * Position of the next page offset of the last page, the header is written if the file is empty
+     */
+    private static long lastOffsetPosition(RandomAccessFile raf) throws IOException {
+        if (raf.length() < 8) {
+            raf.setLength(0);
+            raf.write(new byte[] {'I', 'I', 42, 0, 0, 0, 0, 0});
+            return(4);
+        }
+        long position = 4;
+        for (long offset = readInt(raf, position); offset != 0; offset = readInt(raf, position)) {
+            int nbTags = readShort(raf, offset);
+            position = offset + 2 + 12L*nbTags;
+        }
+        return(position);
+    }
+
+
+    private static byte[] deflate(short[] labels) {
+        ByteBuffer bytes = ByteBuffer.allocate(2*labels.length).order(ByteOrder.LITTLE_ENDIAN);
+        bytes.asShortBuffer().put(labels);
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        deflater.setInput(bytes.array());
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(labels.length/4);
+        byte[] buffer = new byte[1 << 16];
+        while (!deflater.finished())
+            out.write(buffer, 0, deflater.deflate(buffer));
+        deflater.end();
+        return(out.toByteArray());
+    }
+
+
+    /**
+     * Read the masks of a time point
+     * @param time time point, starting at 1
+     * @return bacteria and DNA masks, null if the time point is not in the file
+     */
+    public static ShortProcessor[] read(File file, int time) throws IOException {
+        ShortProcessor[] masks = new ShortProcessor[2];
+        String[] names = {"t" + time + "_bacteria", "t" + time + "_DNA"};
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            for (long offset = readInt(raf, 4); offset != 0 && offset < raf.length(); ) {
+                int nbTags = readShort(raf, offset);
+                int width = 0, height = 0, nameLength = 0;
+                long dataOffset = 0, dataLength = 0, nameOffset = 0;
+                for (int i = 0; i < nbTags; i++) {
+                    long entry = offset + 2 + 12L*i;
+                    int tag = readShort(raf, entry);
+                    int type = readShort(raf, entry + 2);
+                    long value = (type == 3) ? readShort(raf, entry + 8) : readInt(raf, entry + 8);
+                    switch (tag) {
+                        case 256: width = (int) value; break;
+                        case 257: height = (int) value; break;
+                        case 273: dataOffset = value; break;
+                        case 279: dataLength = value; break;
+                        case 285: nameLength = (int) readInt(raf, entry + 4); nameOffset = value; break;
+                    }
+                }
+                String name = "";
+                if (nameLength > 4) {
+                    byte[] bytes = new byte[nameLength - 1];
+                    raf.seek(nameOffset);
+                    raf.readFully(bytes);
+                    name = new String(bytes, StandardCharsets.US_ASCII);
+                }
+                for (int c = 0; c < names.length; c++) {
+                    if (name.equals(names[c])) {
+                        byte[] data = new byte[(int) dataLength];
+                        raf.seek(dataOffset);
+                        raf.readFully(data);
+                        masks[c] = new ShortProcessor(width, height, inflate(data, width*height), null);
+                    }
+                }
+                offset = readInt(raf, offset + 2 + 12L*nbTags);
+            }
+        }
+        return((masks[0] == null || masks[1] == null) ? null : masks);
+    }
+
+
+    private static short[] inflate(byte[] data, int len) throws IOException {
+        byte[] bytes = new byte[2*len];
+        Inflater inflater = new Inflater();
+        inflater.setInput(data);
+        try {
+            int n = 0;
+            while (n < bytes.length && !inflater.finished()) {
+                int read = inflater.inflate(bytes, n, bytes.length - n);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new IOException("Truncated mask data");
+                n += read;
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException("Invalid mask data: " + ex.getMessage());
+        } finally {
+            inflater.end();
+        }
+        short[] labels = new short[len];
+        ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(labels);
+        return(labels);
+    }
+
+
+    private static int readShort(RandomAccessFile raf, long position) throws IOException {
+        raf.seek(position);
+        return(raf.readUnsignedByte() | raf.readUnsignedByte() << 8);
+    }
+
+
+    private static long readInt(RandomAccessFile raf, long position) throws IOException {
+        raf.seek(position);
+        return(raf.readUnsignedByte() | raf.readUnsignedByte() << 8 | raf.readUnsignedByte() << 16 | (long) raf.readUnsignedByte() << 24);
+    }
+}
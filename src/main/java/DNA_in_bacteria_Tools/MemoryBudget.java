@@ -0,0 +1,73 @@
+package DNA_in_bacteria_Tools;
+
+import ij.IJ;
+
+
+/**
+ * Memory shared by all frames being processed
+ * Frames reserve their estimated memory before being opened, and wait while the budget is exceeded
+ * or the heap is already too full. A frame is always allowed when nothing is reserved, so a single
+ * frame bigger than the budget can't block the analysis.
+ * @author Orion-CIRB
+ */
+public class MemoryBudget {
+
+    private final long capacity;
+    private long reserved = 0;
+
+
+    /**
+     * @param fraction fraction of ImageJ max memory that frames can use
+     */
+    public MemoryBudget(double fraction) {
+        capacity = (long) (IJ.maxMemory() * fraction);
+    }
+
+
+    /**
+     * Wait until memory is available, and reserve it
+     * @throws java.lang.InterruptedException
+     */
+    public synchronized void acquire(long bytes) throws InterruptedException {
+        while (!fits(bytes))
+            wait(200);
+        reserved += bytes;
+    }
+
+
+    /**
+     * Reserve memory only if it is available now
+     * @return false if acquire would wait
+     */
+    public synchronized boolean tryAcquire(long bytes) {
+        if (!fits(bytes))
+            return(false);
+        reserved += bytes;
+        return(true);
+    }
+
+
+    /**
+     * Give back reserved memory
+     */
+    public synchronized void release(long bytes) {
+        reserved -= bytes;
+        notifyAll();
+    }
+
+
+    public long getCapacity() {
+        return(capacity);
+    }
+
+
+    private boolean fits(long bytes) {
+        return(reserved == 0 || (reserved + bytes <= capacity && usedHeap() + bytes <= capacity));
+    }
+
+
+    private long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return(runtime.totalMemory() - runtime.freeMemory());
+    }
+}
@@ -0,0 +1,125 @@
+package DNA_in_bacteria_Tools;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Results files shared by files processed in parallel
+ * Files are written in their index order: rows of a file are kept in memory until all previous files are done.
+ * Rows are buffered by the results files and written at checkpoints: at the end of each file,
+ * or once the buffered bytes or rows reach a threshold.
+ * Frames are added to the journal one by one at checkpoints, once their rows and results images are on disk,
+ * so the journal gives the rows of each frame.
+ * @author Orion-CIRB
+ */
+public class OrderedResults {
+
+    private final List<ResultsSink> sinks;
+    private final Journal journal;
+    private final OverlayWriter overlays;
+    private final int flushBytes;
+    private final int flushRows;
+    // Index of the file whose rows are written directly
+    private int currentFile = 0;
+    // File index -> rows of its frames, in frames order
+    private final HashMap<Integer, LinkedHashMap<Frame, FrameResults>> pending = new HashMap<>();
+    private final HashSet<Integer> done = new HashSet<>();
+    // Frames buffered since the last checkpoint, with results files length after them
+    private final ArrayList<Frame> buffered = new ArrayList<>();
+    private final ArrayList<long[]> bufferedPositions = new ArrayList<>();
+    private int bufferedRows = 0;
+
+
+    /**
+     * @param sinks results files, in the journal order
+     * @param overlays results images saved in the background, null if none
+     * @param flushBytes bytes buffered by a results file before a checkpoint
+     * @param flushRows rows buffered before a checkpoint
+     */
+    public OrderedResults(List<ResultsSink> sinks, Journal journal, OverlayWriter overlays, int flushBytes, int flushRows) {
+        this.sinks = sinks;
+        this.journal = journal;
+        this.overlays = overlays;
+        this.flushBytes = flushBytes;
+        this.flushRows = flushRows;
+    }
+
+
+    /**
+     * Write all rows of a frame
+     * @throws java.io.IOException
+     */
+    public synchronized void write(Frame frame, FrameResults rows) throws IOException {
+        if (frame.fileIndex == currentFile)
+            writeFrame(frame, rows);
+        else
+            pending.computeIfAbsent(frame.fileIndex, k -> new LinkedHashMap<>()).put(frame, rows);
+    }
+
+
+    private void writeFrame(Frame frame, FrameResults rows) throws IOException {
+        long[] positions = new long[sinks.size()];
+        boolean full = false;
+        for (int i = 0; i < sinks.size(); i++) {
+            ResultsSink sink = sinks.get(i);
+            sink.write(rows);
+            positions[i] = sink.position();
+            full |= sink.buffered() >= flushBytes;
+        }
+        buffered.add(frame);
+        bufferedPositions.add(positions);
+        bufferedRows += rows.size;
+        if (full || bufferedRows >= flushRows)
+            checkpoint();
+    }
+
+
+    /**
+     * Write buffered rows on disk, then add their frames to the journal
+     * @throws java.io.IOException
+     */
+    public synchronized void checkpoint() throws IOException {
+        if (buffered.isEmpty())
+            return;
+        if (overlays != null) {
+            try {
+                overlays.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while saving results images", ex);
+            }
+        }
+        for (ResultsSink sink : sinks)
+            sink.sync();
+        for (int i = 0; i < buffered.size(); i++)
+            journal.add(buffered.get(i), bufferedPositions.get(i));
+        journal.sync();
+        buffered.clear();
+        bufferedPositions.clear();
+        bufferedRows = 0;
+    }
+
+
+    /**
+     * All frames of a file are written, even if the file failed
+     * @throws java.io.IOException
+     */
+    public synchronized void fileDone(int fileIndex) throws IOException {
+        done.add(fileIndex);
+        while (done.remove(currentFile)) {
+            currentFile++;
+            LinkedHashMap<Frame, FrameResults> frames = pending.remove(currentFile);
+            if (frames != null) {
+                for (Map.Entry<Frame, FrameResults> frame : frames.entrySet())
+                    writeFrame(frame.getKey(), frame.getValue());
+            }
+        }
+        checkpoint();
+    }
+}
@@ -0,0 +1,102 @@
+package DNA_in_bacteria_Tools;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+
+/**
+ * Results images drawn and saved in the background, by a pool of writers
+ * At most writers + queue depth overlays are pending: submitting more waits until one is saved,
+ * so frames waiting for their overlay can't fill the memory.
+ * The first error is raised by the next submit or await.
+ * @author Orion-CIRB
+ */
+public class OverlayWriter {
+
+    private final ExecutorService writers;
+    private final int capacity;
+    private int pending = 0;
+    private Exception error = null;
+
+
+    /**
+     * @param nbWriters overlays saved in parallel
+     * @param queueDepth overlays waiting for a writer
+     */
+    public OverlayWriter(int nbWriters, int queueDepth) {
+        writers = Executors.newFixedThreadPool(Math.max(1, nbWriters));
+        capacity = Math.max(1, nbWriters) + Math.max(0, queueDepth);
+    }
+
+
+    /**
+     * Wait for a free place, then draw and save an overlay in the background
+     * @param overlay draws and saves the overlay
+     * @param done always run once the overlay is saved or failed, to give back its images
+     * @throws IOException if a previous overlay failed
+     * @throws InterruptedException
+     */
+    public synchronized void submit(Callable<Void> overlay, Runnable done) throws IOException, InterruptedException {
+        while (pending >= capacity && error == null)
+            wait();
+        check();
+        pending++;
+        writers.execute(() -> {
+            try {
+                overlay.call();
+            } catch (Exception ex) {
+                failed(ex);
+            } finally {
+                done.run();
+                finished();
+            }
+        });
+    }
+
+
+    /**
+     * Wait until all submitted overlays are saved
+     * @throws IOException if an overlay failed
+     * @throws InterruptedException
+     */
+    public synchronized void await() throws IOException, InterruptedException {
+        while (pending > 0)
+            wait();
+        check();
+    }
+
+
+    /**
+     * Wait for submitted overlays and stop the writers
+     * @throws IOException if an overlay failed
+     * @throws InterruptedException
+     */
+    public void close() throws IOException, InterruptedException {
+        try {
+            await();
+        } finally {
+            writers.shutdownNow();
+        }
+    }
+
+
+    private synchronized void finished() {
+        pending--;
+        notifyAll();
+    }
+
+
+    private synchronized void failed(Exception ex) {
+        if (error == null)
+            error = ex;
+        notifyAll();
+    }
+
+
+    private void check() throws IOException {
+        if (error != null)
+            throw new IOException("Results images can't be saved: " + error.getMessage(), error);
+    }
+}
@@ -0,0 +1,190 @@
+package DNA_in_bacteria_Tools;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import loci.plugins.util.ImageProcessorReader;
+
+
+/**
+ * Planes of the next frames of a file, read ahead by background decoders
+ * Each decoder has its own reader on the file, so compressed planes are decoded in parallel.
+ * Decoder readers are opened with Tools.openReader: with the readers memo they load the metadata parsed by the
+ * pipeline reader, without it each decoder parses the file again.
+ * Planes are read in the order they are asked, at most a number of frames ahead and within a memory cap,
+ * and are removed from the cache as soon as they are taken. The next plane to be taken is always read,
+ * so a plane bigger than the cap can't block the reading.
+ * @author Orion-CIRB
+ */
+public class PlanePrefetcher implements Closeable {
+
+    // A plane to read: series, plane index in the series, frame index in the read order
+    private static class Plane {
+        final int series;
+        final int no;
+        final int frame;
+        final long bytes;
+
+        Plane(int series, int no, int frame, long bytes) {
+            this.series = series;
+            this.no = no;
+            this.frame = frame;
+            this.bytes = bytes;
+        }
+    }
+
+    private final Tools tools;
+    private final String file;
+    private final int framesAhead;
+    private final long maxBytes;
+    private final ArrayList<Plane> planes = new ArrayList<>();
+    private final ExecutorService decoders;
+    private final ArrayList<ImageProcessorReader> readers = new ArrayList<>();
+
+    // Next plane to read, and next plane to be taken
+    private int nextRead = 0;
+    private int nextTaken = 0;
+    // Read planes not taken yet, by index in the planes list
+    private final HashMap<Integer, byte[]> cache = new HashMap<>();
+    private long cached = 0;
+    private Exception error = null;
+    private boolean closed = false;
+
+
+    /**
+     * @param framesAhead frames read before being asked
+     * @param maxBytes bytes of planes read and not taken yet
+     */
+    public PlanePrefetcher(Tools tools, String file, int nbDecoders, int framesAhead, long maxBytes) {
+        this.tools = tools;
+        this.file = file;
+        this.framesAhead = Math.max(1, framesAhead);
+        this.maxBytes = maxBytes;
+        decoders = Executors.newFixedThreadPool(Math.max(1, nbDecoders));
+        for (int d = 0; d < Math.max(1, nbDecoders); d++)
+            decoders.execute(this::decode);
+    }
+
+
+    /**
+     * Add a plane to read, in the order it will be taken
+     * @param frame index of the frame of the plane, in frames order
+     */
+    public synchronized void add(int series, int no, int frame, long bytes) {
+        planes.add(new Plane(series, no, frame, bytes));
+        notifyAll();
+    }
+
+
+    /**
+     * Wait for the next plane and remove it from the cache
+     * Planes must be taken in the order they were added.
+     * @throws IOException if the plane can't be read
+     * @throws InterruptedException
+     */
+    public synchronized byte[] take(int series, int no) throws IOException, InterruptedException {
+        if (nextTaken >= planes.size() || planes.get(nextTaken).series != series || planes.get(nextTaken).no != no)
+            throw new IllegalStateException("Plane " + no + " of series " + series + " was not asked in this order");
+        while (!cache.containsKey(nextTaken) && error == null)
+            wait();
+        if (error != null)
+            throw new IOException("Plane can't be read: " + error.getMessage(), error);
+        byte[] plane = cache.remove(nextTaken);
+        cached -= plane.length;
+        nextTaken++;
+        notifyAll();
+        return(plane);
+    }
+
+
+    /**
+     * Read planes until closed, with its own reader
+     */
+    private void decode() {
+        try {
+            ImageProcessorReader reader = tools.openReader(file);
+            synchronized (this) {
+                if (closed) {
+                    reader.close();
+                    return;
+                }
+                readers.add(reader);
+            }
+            while (true) {
+                int index;
+                Plane plane;
+                synchronized (this) {
+                    while (!closed && !canRead())
+                        wait();
+                    if (closed)
+                        return;
+                    index = nextRead++;
+                    plane = planes.get(index);
+                    cached += plane.bytes;
+                }
+                if (reader.getSeries() != plane.series)
+                    reader.setSeries(plane.series);
+                byte[] bytes = reader.openBytes(plane.no);
+                synchronized (this) {
+                    cached += bytes.length - plane.bytes;
+                    cache.put(index, bytes);
+                    notifyAll();
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (Exception ex) {
+            synchronized (this) {
+                if (error == null)
+                    error = ex;
+                notifyAll();
+            }
+        }
+    }
+
+
+    /**
+     * Next plane is asked, not too far ahead, and fits in memory (always true for the next plane to be taken)
+     */
+    private boolean canRead() {
+        if (nextRead >= planes.size() || error != null)
+            return(false);
+        Plane plane = planes.get(nextRead);
+        if (nextRead == nextTaken)
+            return(true);
+        int takenFrame = (nextTaken < planes.size()) ? planes.get(nextTaken).frame : plane.frame;
+        return(plane.frame - takenFrame < framesAhead && cached + plane.bytes <= maxBytes);
+    }
+
+
+    /**
+     * Stop the decoders and close their readers, once they are done with the plane they are reading
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            cache.clear();
+            notifyAll();
+        }
+        decoders.shutdownNow();
+        try {
+            if (!decoders.awaitTermination(1, TimeUnit.MINUTES))
+                System.out.println("Planes still read 1 min after the end of the file, closing readers anyway");
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        List<ImageProcessorReader> opened;
+        synchronized (this) {
+            opened = new ArrayList<>(readers);
+            readers.clear();
+        }
+        for (ImageProcessorReader reader : opened)
+            reader.close();
+    }
+}
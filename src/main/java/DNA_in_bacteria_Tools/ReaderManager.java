@@ -0,0 +1,61 @@
+package DNA_in_bacteria_Tools;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import loci.plugins.util.ImageProcessorReader;
+
+
+/**
+ * One initialized reader per image file for the whole run
+ * A file is parsed once: the reader opened to read its metadata is the one used to read its planes.
+ * Readers are opened with Tools.openReader, so their parsed metadata is memoized if enabled.
+ * A reader is used by one thread at a time: the thread processing its file.
+ * @author Orion-CIRB
+ */
+public class ReaderManager implements Closeable {
+
+    private final Tools tools;
+    // File path -> reader opened on it
+    private final HashMap<String, ImageProcessorReader> readers = new HashMap<>();
+
+
+    public ReaderManager(Tools tools) {
+        this.tools = tools;
+    }
+
+
+    /**
+     * Reader of a file, opened at the first call
+     * @throws java.lang.Exception if the file can't be opened
+     */
+    public synchronized ImageProcessorReader get(String file) throws Exception {
+        ImageProcessorReader reader = readers.get(file);
+        if (reader == null) {
+            reader = tools.openReader(file);
+            readers.put(file, reader);
+        }
+        return(reader);
+    }
+
+
+    /**
+     * Close the reader of a file, once all its frames are read
+     */
+    public synchronized void close(String file) throws IOException {
+        ImageProcessorReader reader = readers.remove(file);
+        if (reader != null)
+            reader.close();
+    }
+
+
+    /**
+     * Close all readers still opened
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        for (String file : new ArrayList<>(readers.keySet()))
+            close(file);
+    }
+}
@@ -0,0 +1,40 @@
+package DNA_in_bacteria_Tools;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+
+/**
+ * Results file, rows are added frame by frame
+ * @author Orion-CIRB
+ */
+public interface ResultsSink extends Closeable {
+
+    /**
+     * Add rows of a frame, they may stay in memory until flush
+     */
+    void write(FrameResults rows) throws IOException;
+
+    /**
+     * Results file length once all added rows are written
+     */
+    long position();
+
+    /**
+     * Bytes added but not written yet
+     */
+    int buffered();
+
+    /**
+     * Write added rows in the file
+     */
+    void flush() throws IOException;
+
+    /**
+     * Write added rows in the file and wait until they are on the storage device
+     */
+    void sync() throws IOException;
+
+    File getFile();
+}
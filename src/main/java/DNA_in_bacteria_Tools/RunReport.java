@@ -0,0 +1,232 @@
+package DNA_in_bacteria_Tools;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import com.sun.management.GarbageCollectionNotificationInfo;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+
+/**
+ * Time, CPU, bytes read and heap used by each stage of each frame
+ * One row per frame and stage is written in report.csv as soon as the stage ends,
+ * report_summary.csv gives totals and wall time percentiles per stage at the end of the run.
+ * Rows without file are run-level stages, as the Omnipose worker start.
+ * Heap is sampled when each stage ends, not during the stage. Peak heap of the run is the max of these samples and
+ * of the heap used just before each garbage collection, when the heap is the fullest.
+ * @author Orion-CIRB
+ */
+public class RunReport implements Closeable {
+
+    public static final String[] COLUMNS = {"File", "Series", "Time", "Stage", "Wall (ms)", "CPU (ms)", "Bytes read", "Heap at stage end (MB)"};
+    public static final String[] SUMMARY_COLUMNS = {"Stage", "Count", "Total wall (s)", "Total CPU (s)", "Bytes read",
+        "p50 wall (ms)", "p90 wall (ms)", "p99 wall (ms)", "Max wall (ms)", "Max heap at stage end (MB)", "Peak heap (MB)"};
+
+    /**
+     * Start of a stage on the current thread
+     */
+    public static class Timer {
+        final long wall;
+        final long cpu;
+
+        private Timer(long wall, long cpu) {
+            this.wall = wall;
+            this.cpu = cpu;
+        }
+    }
+
+    // Wall times of a stage, in ns
+    private static class Stage {
+        long[] walls = new long[64];
+        int count = 0;
+        long cpu = 0;
+        long bytes = 0;
+        long maxHeap = 0;
+
+        void add(long wall, long cpu, long bytes, long heap) {
+            if (count == walls.length)
+                walls = Arrays.copyOf(walls, 2*count);
+            walls[count++] = wall;
+            this.cpu += Math.max(0, cpu);
+            this.bytes += bytes;
+            maxHeap = Math.max(maxHeap, heap);
+        }
+    }
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean CPU_TIME = THREADS.isCurrentThreadCpuTimeSupported();
+    private static final long MB = 1024*1024;
+
+    private final File summaryFile;
+    private final BufferedWriter writer;
+    private final LinkedHashMap<String, Stage> stages = new LinkedHashMap<>();
+    private final long start = System.nanoTime();
+    // Peak heap of the run, in bytes
+    private long peakHeap = 0;
+    // Garbage collectors notifying the heap used before each collection
+    private final ArrayList<NotificationEmitter> collectors = new ArrayList<>();
+    private final NotificationListener gcListener = this::collected;
+
+
+    /**
+     * @param outDir results folder
+     * @param append add rows to the report of a previous run, when it is resumed
+     */
+    public RunReport(String outDir, int nbShards, int shard, boolean append) throws IOException {
+        String suffix = (nbShards > 1) ? "_shard" + shard + ".csv" : ".csv";
+        summaryFile = new File(outDir, "report_summary" + suffix);
+        File reportFile = new File(outDir, "report" + suffix);
+        boolean header = !append || reportFile.length() == 0;
+        writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(reportFile, append), StandardCharsets.UTF_8));
+        if (header)
+            writer.write(String.join(",", COLUMNS) + "\n");
+        if (CPU_TIME && !THREADS.isThreadCpuTimeEnabled())
+            THREADS.setThreadCpuTimeEnabled(true);
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (collector instanceof NotificationEmitter) {
+                ((NotificationEmitter) collector).addNotificationListener(gcListener, null, null);
+                collectors.add((NotificationEmitter) collector);
+            }
+        }
+    }
+
+
+    /**
+     * Heap used just before a garbage collection, summed over the heap pools at the same time
+     */
+    private void collected(Notification notification, Object handback) {
+        if (!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION))
+            return;
+        GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+        HashSet<String> heapPools = new HashSet<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP)
+                heapPools.add(pool.getName());
+        }
+        long heap = 0;
+        for (Map.Entry<String, MemoryUsage> pool : info.getGcInfo().getMemoryUsageBeforeGc().entrySet()) {
+            if (heapPools.contains(pool.getKey()))
+                heap += pool.getValue().getUsed();
+        }
+        synchronized (this) {
+            peakHeap = Math.max(peakHeap, heap);
+        }
+    }
+
+
+    /**
+     * Start timing a stage, on the thread running it
+     */
+    public static Timer start() {
+        return(new Timer(System.nanoTime(), CPU_TIME ? THREADS.getCurrentThreadCpuTime() : -1));
+    }
+
+
+    /**
+     * End of a stage started on the current thread
+     * @param frame null for run-level stages
+     * @param bytes bytes read from the image file
+     */
+    public void add(Frame frame, String stage, Timer timer, long bytes) {
+        long cpu = (timer.cpu < 0) ? -1 : THREADS.getCurrentThreadCpuTime() - timer.cpu;
+        add(frame, stage, System.nanoTime() - timer.wall, cpu, bytes);
+    }
+
+
+    /**
+     * Add a stage with known durations, as a share of a batch
+     * @param cpu CPU time in ns, -1 if unknown
+     */
+    public synchronized void add(Frame frame, String stage, long wall, long cpu, long bytes) {
+        Runtime rt = Runtime.getRuntime();
+        long heap = rt.totalMemory() - rt.freeMemory();
+        peakHeap = Math.max(peakHeap, heap);
+        stages.computeIfAbsent(stage, k -> new Stage()).add(wall, cpu, bytes, heap);
+        try {
+            StringBuilder row = new StringBuilder();
+            if (frame != null)
+                row.append(csv(new File(frame.file).getName())).append(',').append(frame.series).append(',').append(frame.time+1);
+            else
+                row.append(",,");
+            row.append(',').append(csv(stage)).append(',').append(ms(wall)).append(',').append((cpu < 0) ? "" : ms(cpu))
+                    .append(',').append(bytes).append(',').append(heap/MB).append('\n');
+            writer.write(row.toString());
+        } catch (IOException ex) {
+            System.out.println("Report row can't be written: " + ex.getMessage());
+        }
+    }
+
+
+    /**
+     * Write the summary of all stages, with a last row for the whole run
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        for (NotificationEmitter collector : collectors) {
+            try {
+                collector.removeNotificationListener(gcListener);
+            } catch (ListenerNotFoundException ex) {
+                // Already removed
+            }
+        }
+        try {
+            writer.close();
+        } finally {
+            try (BufferedWriter summary = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(summaryFile), StandardCharsets.UTF_8))) {
+                summary.write(String.join(",", SUMMARY_COLUMNS) + "\n");
+                for (Map.Entry<String, Stage> entry : stages.entrySet()) {
+                    Stage s = entry.getValue();
+                    long[] walls = Arrays.copyOf(s.walls, s.count);
+                    Arrays.sort(walls);
+                    long total = 0;
+                    for (long wall : walls)
+                        total += wall;
+                    summary.write(csv(entry.getKey()) + "," + s.count + "," + String.format(Locale.US, "%.3f", total/1e9) + ","
+                            + String.format(Locale.US, "%.3f", s.cpu/1e9) + "," + s.bytes + "," + ms(percentile(walls, 50)) + ","
+                            + ms(percentile(walls, 90)) + "," + ms(percentile(walls, 99)) + "," + ms(walls[walls.length-1]) + ","
+                            + s.maxHeap/MB + ",\n");
+                }
+                summary.write("run,1," + String.format(Locale.US, "%.3f", (System.nanoTime() - start)/1e9) + ",,,,,,,," + peakHeap/MB + "\n");
+            }
+        }
+    }
+
+
+    /**
+     * Nearest-rank percentile of sorted values
+     */
+    private static long percentile(long[] sorted, int p) {
+        int rank = (int) Math.ceil(p/100.0 * sorted.length);
+        return(sorted[Math.max(0, rank-1)]);
+    }
+
+
+    private static String ms(long ns) {
+        return(String.format(Locale.US, "%.3f", ns/1e6));
+    }
+
+
+    private static String csv(String value) {
+        return((value.indexOf(',') < 0 && value.indexOf('"') < 0) ? value : "\"" + value.replace("\"", "\"\"") + "\"");
+    }
+}
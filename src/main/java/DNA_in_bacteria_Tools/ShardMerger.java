@@ -0,0 +1,210 @@
+package DNA_in_bacteria_Tools;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+
+
+/**
+ * Merge results of shards in one results file, with frames in the order of a single run: file name, series, time
+ * Rows of each frame are found in the shard results files with the shard journal.
+ * results.xls is merged, and results.bin if all shards saved it.
+ * Shards are merged only if they all finished: each shard writes done_shard&lt;k&gt;.txt with its number of frames
+ * at the end of its run, and its journal must have all these frames.
+ * @author Orion-CIRB
+ */
+public class ShardMerger {
+
+    // Rows of a frame in a shard results file
+    private static class Rows {
+        final String file;
+        final int series;
+        final int time;
+        final int shard;
+        final long start;
+        final long end;
+
+        Rows(String[] entry, int shard, long start, int sink) {
+            file = entry[0];
+            series = Integer.parseInt(entry[1]);
+            time = Integer.parseInt(entry[2]);
+            this.shard = shard;
+            this.start = start;
+            end = Long.parseLong(entry[3+sink]);
+        }
+    }
+
+
+    /**
+     * Results file name of a shard, with its extension
+     */
+    public static String resultsName(int nbShards, int shard, String extension) {
+        return((nbShards > 1) ? "results_shard" + shard + extension : "results" + extension);
+    }
+
+
+    public static String journalName(int nbShards, int shard) {
+        return((nbShards > 1) ? "journal_shard" + shard + ".txt" : "journal.txt");
+    }
+
+
+    /**
+     * Completion marker of a shard
+     */
+    public static String doneName(int shard) {
+        return("done_shard" + shard + ".txt");
+    }
+
+
+    /**
+     * Remove the completion marker of a shard, when its run starts
+     */
+    public static void clearDone(String outDir, int shard) throws IOException {
+        Files.deleteIfExists(new File(outDir, doneName(shard)).toPath());
+    }
+
+
+    /**
+     * Write the completion marker of a shard, once all its frames are analyzed
+     */
+    public static void markDone(String outDir, int shard, int frames) throws IOException {
+        Files.write(new File(outDir, doneName(shard)).toPath(), (frames + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+
+    /**
+     * Merge results of all shards of a results folder
+     * @return number of merged frames
+     * @throws IOException if a shard is missing or not finished, nothing is merged
+     */
+    public static int merge(String outDir, int nbShards) throws IOException {
+        if (nbShards < 2)
+            throw new IOException("No shards to merge");
+        checkDone(outDir, nbShards);
+        int frames = merge(outDir, nbShards, ".xls", 0);
+        boolean columnar = true;
+        for (int k = 0; k < nbShards; k++)
+            columnar &= new File(outDir, resultsName(nbShards, k, ".bin")).exists();
+        if (columnar)
+            merge(outDir, nbShards, ".bin", 1);
+        return(frames);
+    }
+
+
+    /**
+     * Check that all shards finished with all their frames in their journal
+     * @throws IOException listing unfinished shards
+     */
+    private static void checkDone(String outDir, int nbShards) throws IOException {
+        ArrayList<String> unfinished = new ArrayList<>();
+        for (int k = 0; k < nbShards; k++) {
+            File done = new File(outDir, doneName(k));
+            File journal = new File(outDir, journalName(nbShards, k));
+            if (!done.exists() || !journal.exists()) {
+                unfinished.add("shard " + k + " not finished");
+                continue;
+            }
+            int expected;
+            try {
+                expected = Integer.parseInt(new String(Files.readAllBytes(done.toPath()), StandardCharsets.UTF_8).trim());
+            } catch (NumberFormatException ex) {
+                throw new IOException("Invalid completion marker " + done);
+            }
+            HashSet<String> frames = new HashSet<>();
+            for (String[] entry : Journal.read(journal))
+                frames.add(entry[0] + "\t" + entry[1] + "\t" + entry[2]);
+            if (frames.size() < expected)
+                unfinished.add("shard " + k + " has " + frames.size() + " of " + expected + " frames");
+        }
+        if (!unfinished.isEmpty())
+            throw new IOException(String.join(", ", unfinished));
+    }
+
+
+    /**
+     * Merge results files with a given extension
+     * @param sink index of the results file in journal lines
+     */
+    private static int merge(String outDir, int nbShards, String extension, int sink) throws IOException {
+        FileChannel[] shards = new FileChannel[nbShards];
+        try {
+            ArrayList<Rows> frames = new ArrayList<>();
+            long headerLength = -1;
+            for (int k = 0; k < nbShards; k++) {
+                File results = new File(outDir, resultsName(nbShards, k, extension));
+                File journal = new File(outDir, journalName(nbShards, k));
+                if (!results.exists() || !journal.exists())
+                    throw new IOException("Results of shard " + k + " not found in " + outDir);
+                shards[k] = FileChannel.open(results.toPath(), StandardOpenOption.READ);
+
+                // Rows of a frame start where rows of the previous frame end, first frame starts after the header
+                long start = extension.equals(".bin") ? ColumnarResultsSink.headerLength(results) : header(results);
+                if (k == 0)
+                    headerLength = start;
+                for (String[] entry : Journal.read(journal)) {
+                    if (entry.length <= 3+sink)
+                        throw new IOException("Journal of shard " + k + " has no " + extension + " results");
+                    Rows rows = new Rows(entry, k, start, sink);
+                    frames.add(rows);
+                    start = rows.end;
+                }
+            }
+            frames.sort(Comparator.<Rows, String>comparing(r -> r.file).thenComparingInt(r -> r.series).thenComparingInt(r -> r.time));
+
+            try (FileChannel out = new FileOutputStream(new File(outDir, "results" + extension)).getChannel()) {
+                transfer(shards[0], 0, headerLength, out);
+                HashSet<String> done = new HashSet<>();
+                for (Rows rows : frames) {
+                    // Frame analyzed by two shards
+                    if (!done.add(rows.file + "\t" + rows.series + "\t" + rows.time))
+                        continue;
+                    transfer(shards[rows.shard], rows.start, rows.end, out);
+                }
+                return(done.size());
+            }
+        } finally {
+            for (FileChannel shard : shards)
+                if (shard != null)
+                    shard.close();
+        }
+    }
+
+
+    /**
+     * Header length, with its line feed
+     */
+    private static long header(File results) throws IOException {
+        try (FileChannel channel = FileChannel.open(results.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(4096);
+            long position = 0;
+            while (channel.read(buffer) > 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    position++;
+                    if (buffer.get() == '\n')
+                        return(position);
+                }
+                buffer.clear();
+            }
+            throw new IOException("No header in " + results);
+        }
+    }
+
+
+    private static void transfer(FileChannel in, long start, long end, FileChannel out) throws IOException {
+        for (long position = start; position < end; ) {
+            long n = in.transferTo(position, end - position, out);
+            if (n <= 0)
+                throw new IOException("Results file shorter than its journal");
+            position += n;
+        }
+    }
+}
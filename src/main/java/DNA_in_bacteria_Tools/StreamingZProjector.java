@@ -0,0 +1,173 @@
+package DNA_in_bacteria_Tools;
+
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import ij.plugin.ZProjector;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.IFormatReader;
+
+
+/**
+ * Z projection computed while reading the planes, without opening the Z stack
+ * Planes are read one by one in a reused buffer and added to a float accumulator,
+ * so peak memory is one plane and one projection. Planes can also be read by tiles, for very large planes.
+ * Same computation as ZProjector: AVG output is identical to a ZProjector AVG_METHOD projection of the stack
+ * Not thread-safe: use one projector per reading thread.
+ * @author Orion-CIRB
+ */
+public class StreamingZProjector {
+
+    private final int method;
+    private byte[] plane = new byte[0];
+    private ByteBuffer buffer = ByteBuffer.wrap(plane);
+    // Bytes of all planes read by this projector
+    private long bytesRead = 0;
+    // Whole planes read ahead, null if planes are read when needed
+    private PlanePrefetcher prefetcher = null;
+
+
+    /**
+     * @param method ZProjector.AVG_METHOD, ZProjector.MAX_METHOD or ZProjector.SUM_METHOD
+     */
+    public StreamingZProjector(int method) {
+        if (method != ZProjector.AVG_METHOD && method != ZProjector.MAX_METHOD && method != ZProjector.SUM_METHOD)
+            throw new IllegalArgumentException("Unsupported Z projection method " + method);
+        this.method = method;
+    }
+
+
+    /**
+     * Take whole planes from a prefetcher instead of reading them, planes must be added to it in projection order
+     */
+    public void setPrefetcher(PlanePrefetcher prefetcher) {
+        this.prefetcher = prefetcher;
+    }
+
+
+    /**
+     * Project all Z planes of a channel at a given time of the current series of the reader
+     * @return 32-bit projection for AVG and SUM, projection with the type of the planes for MAX
+     * @throws loci.formats.FormatException
+     * @throws java.io.IOException
+     */
+    public ImagePlus project(IFormatReader reader, int channel, int time, Calibration cal) throws FormatException, IOException {
+        return(project(reader, channel, time, cal, 0));
+    }
+
+
+    /**
+     * Project all Z planes of a channel, reading planes by square tiles
+     * Peak memory is one tile of plane and one projection.
+     * @param tileSize tiles size in pixels, 0 = whole planes
+     * @throws loci.formats.FormatException
+     * @throws java.io.IOException
+     */
+    public ImagePlus project(IFormatReader reader, int channel, int time, Calibration cal, int tileSize) throws FormatException, IOException {
+        int width = reader.getSizeX();
+        int height = reader.getSizeY();
+        int pixelType = reader.getPixelType();
+        int bpp = FormatTools.getBytesPerPixel(pixelType);
+        int len = width*height;
+
+        float[] fpixels = new float[len];
+        if (method == ZProjector.MAX_METHOD)
+            Arrays.fill(fpixels, -Float.MAX_VALUE);
+        int step = (tileSize > 0) ? tileSize : Math.max(width, height);
+        for (int y = 0; y < height; y += step) {
+            for (int x = 0; x < width; x += step)
+                projectTile(reader, channel, time, x, y, Math.min(step, width-x), Math.min(step, height-y), fpixels, width);
+        }
+        int nSlices = reader.getSizeZ();
+        if (method == ZProjector.AVG_METHOD) {
+            float fnum = nSlices;
+            for (int i = 0; i < len; i++)
+                fpixels[i] /= fnum;
+        }
+
+        ImageProcessor ip = new FloatProcessor(width, height, fpixels);
+        if (method == ZProjector.MAX_METHOD && bpp == 1)
+            ip = ip.convertToByte(false);
+        else if (method == ZProjector.MAX_METHOD && bpp == 2)
+            ip = ip.convertToShort(false);
+        ip.resetMinAndMax();
+        ImagePlus proj = new ImagePlus("c" + channel + "_t" + time, ip);
+        proj.setCalibration(cal);
+        return(proj);
+    }
+
+
+    /**
+     * Add all Z planes of a tile to the accumulator
+     */
+    private void projectTile(IFormatReader reader, int channel, int time, int x0, int y0, int w, int h, float[] fpixels, int width)
+            throws FormatException, IOException {
+        int pixelType = reader.getPixelType();
+        int bpp = FormatTools.getBytesPerPixel(pixelType);
+        if (plane.length != w*h*bpp) {
+            plane = new byte[w*h*bpp];
+            buffer = ByteBuffer.wrap(plane);
+        }
+        ByteOrder order = reader.isLittleEndian() ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+        buffer.order(order);
+        boolean prefetched = prefetcher != null && w == reader.getSizeX() && h == reader.getSizeY();
+
+        int nSlices = reader.getSizeZ();
+        for (int z = 0; z < nSlices; z++) {
+            int no = reader.getIndex(z, channel, time);
+            if (prefetched) {
+                try {
+                    plane = prefetcher.take(reader.getSeries(), no);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while reading planes", ex);
+                }
+                buffer = ByteBuffer.wrap(plane).order(order);
+            } else {
+                reader.openBytes(no, plane, x0, y0, w, h);
+            }
+            bytesRead += plane.length;
+            for (int y = 0; y < h; y++) {
+                int offset = (y0+y)*width + x0;
+                for (int x = 0; x < w; x++) {
+                    float value = pixelValue(y*w + x, bpp, pixelType);
+                    int i = offset + x;
+                    if (method == ZProjector.MAX_METHOD) {
+                        if (value > fpixels[i])
+                            fpixels[i] = value;
+                    } else {
+                        fpixels[i] += value;
+                    }
+                }
+            }
+        }
+    }
+
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+
+    /**
+     * Pixel value as read by ImageJ: 8 and 16-bit values are unsigned, others are converted to float
+     */
+    private float pixelValue(int i, int bpp, int pixelType) {
+        switch (bpp) {
+            case 1:
+                return(plane[i] & 0xff);
+            case 2:
+                return(buffer.getShort(2*i) & 0xffff);
+            case 4:
+                return((pixelType == FormatTools.FLOAT) ? buffer.getFloat(4*i) : buffer.getInt(4*i));
+            default:
+                return((float) buffer.getDouble(8*i));
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package DNA_in_bacteria_Tools;
+
+import DNA_in_bacteria_Tools.Cellpose.OmniposeWorker;
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+
+/**
+ * Overlapping tiles of a frame, segmented separately and stitched back in one label image
+ * The frame is split in square cores, each tile is its core grown by the overlap.
+ * An object of a tile is kept only if its centroid is in the tile core, so an object on a seam
+ * is kept once, from the tile where it is whole if the overlap is bigger than the objects.
+ * With a tile size of 0, the frame is a single tile.
+ * @author Orion-CIRB
+ */
+public class TileGrid {
+
+    public final int width;
+    public final int height;
+    public final ArrayList<Rectangle> cores = new ArrayList<>();
+    public final ArrayList<Rectangle> tiles = new ArrayList<>();
+
+
+    /**
+     * @param tileSize cores size in pixels, 0 = whole frame
+     * @param overlap pixels added around each core
+     */
+    public TileGrid(int width, int height, int tileSize, int overlap) {
+        this.width = width;
+        this.height = height;
+        int step = (tileSize > 0) ? tileSize : Math.max(width, height);
+        for (int y = 0; y < height; y += step) {
+            for (int x = 0; x < width; x += step) {
+                Rectangle core = new Rectangle(x, y, Math.min(step, width-x), Math.min(step, height-y));
+                Rectangle tile = new Rectangle(core);
+                tile.grow(overlap, overlap);
+                cores.add(core);
+                tiles.add(tile.intersection(new Rectangle(0, 0, width, height)));
+            }
+        }
+    }
+
+
+    public int size() {
+        return(tiles.size());
+    }
+
+
+    /**
+     * Images of the tiles, the frame itself if it is a single tile
+     */
+    public ArrayList<ImagePlus> crop(ImagePlus img) {
+        ArrayList<ImagePlus> imgs = new ArrayList<>(size());
+        if (size() == 1) {
+            imgs.add(img);
+            return(imgs);
+        }
+        ImageProcessor ip = img.getProcessor();
+        for (int t = 0; t < size(); t++) {
+            Rectangle tile = tiles.get(t);
+            ip.setRoi(tile.x, tile.y, tile.width, tile.height);
+            ImagePlus imgTile = new ImagePlus(img.getShortTitle() + "_tile" + t, ip.crop());
+            imgTile.setCalibration(img.getCalibration());
+            imgs.add(imgTile);
+        }
+        ip.resetRoi();
+        return(imgs);
+    }
+
+
+    /**
+     * Label image of the frame from the masks of its tiles
+     * Objects of the tiles are extracted in parallel, then labelled in tiles order.
+     * @param masks masks of the tiles, in tiles order
+     */
+    public ImagePlus stitch(List<ImagePlus> masks) {
+        if (size() == 1)
+            return(masks.get(0));
+        List<LabelObjects> objects = IntStream.range(0, size()).parallel()
+                .mapToObj(t -> new LabelObjects(masks.get(t).getProcessor()))
+                .collect(Collectors.toList());
+
+        float[] labels = new float[width*height];
+        int label = 0;
+        double inferenceTime = 0;
+        for (int t = 0; t < size(); t++) {
+            Rectangle tile = tiles.get(t);
+            Rectangle core = cores.get(t);
+            LabelObjects tileObjects = objects.get(t);
+            for (int i = 0; i < tileObjects.nbObjects; i++) {
+                double[] center = tileObjects.centroid(i);
+                if (core.contains((int) Math.floor(tile.x + center[0]), (int) Math.floor(tile.y + center[1])))
+                    tileObjects.paste(i, ++label, labels, width, tile.x, tile.y);
+            }
+            Object time = masks.get(t).getProperty(OmniposeWorker.INFERENCE_TIME);
+            if (time instanceof Number)
+                inferenceTime += ((Number) time).doubleValue();
+        }
+        ImagePlus mask = new ImagePlus(masks.get(0).getShortTitle() + "_stitched", new FloatProcessor(width, height, labels));
+        mask.setCalibration(masks.get(0).getCalibration());
+        mask.setProperty(OmniposeWorker.INFERENCE_TIME, inferenceTime);
+        return(mask);
+    }
+}
@@ -1,37 +1,42 @@
 package DNA_in_bacteria_Tools;
 
 import DNA_in_bacteria_Tools.Cellpose.CellposeTaskSettings;
-import DNA_in_bacteria_Tools.Cellpose.CellposeSegmentImgPlusAdvanced;
+import DNA_in_bacteria_Tools.Cellpose.CellposeSegmentImgPlusBatch;
+import DNA_in_bacteria_Tools.Cellpose.OmniposeWorker;
+import DNA_in_bacteria_Tools.Cellpose.SegmentationCache;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.io.FileSaver;
 import ij.measure.Calibration;
-import ij.plugin.Duplicator;
 import fiji.util.gui.GenericDialogPlus;
 import ij.plugin.RGBStackMerge;
-import ij.plugin.ZProjector;
+import ij.process.ShortProcessor;
 import java.awt.Color;
 import java.awt.Font;
-import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.zip.GZIPOutputStream;
 import javax.swing.ImageIcon;
 import loci.common.services.DependencyException;
 import loci.common.services.ServiceException;
+import loci.common.services.ServiceFactory;
+import loci.formats.ChannelSeparator;
 import loci.formats.FormatException;
+import loci.formats.Memoizer;
 import loci.formats.meta.IMetadata;
+import loci.formats.services.OMEXMLService;
 import loci.plugins.util.ImageProcessorReader;
-import mcib3d.geom.Voxel3D;
-import mcib3d.geom2.Object3DInt;
-import mcib3d.geom2.Objects3DIntPopulation;
-import mcib3d.geom2.Objects3DIntPopulationComputation;
-import mcib3d.geom2.VoxelInt;
-import mcib3d.geom2.measurements.MeasureCentroid;
-import mcib3d.geom2.measurements.MeasureFeret;
-import mcib3d.geom2.measurements.MeasureIntensity;
-import mcib3d.geom2.measurements.MeasureVolume;
+import loci.plugins.util.LociPrefs;
 import mcib3d.image3d.ImageHandler;
 import org.apache.commons.io.FilenameUtils;
 
@@ -58,6 +63,76 @@ public class Tools {
     private int omniposeMaskThreshold = 0;
     private double omniposeFlowThreshold = 0;
     private boolean useGpu = true;
+    // Number of frames segmented with a single Omnipose call (0 = all frames of a file)
+    public int omniposeBatchSize = 20;
+    // Keep one Omnipose process running with both models loaded
+    public boolean useOmniposeWorker = true;
+    // Max time for the worker to load its models or to segment an image (s), it is killed after
+    public int omniposeWorkerTimeout = 600;
+    // Folder where Omnipose temp folders are created (empty = temp folder)
+    public String omniposeScratchDir = "";
+    // Stub worker, to test the worker protocol without an Omnipose environment
+    public boolean omniposeStubWorker = Boolean.getBoolean("omnipose.stubWorker");
+    // Exchange images with the worker through shared memory instead of its stdin/stdout
+    public boolean omniposeSharedMemory = true;
+    // Shared by the pipelines of all files, started and stopped under omniposeWorkerLock
+    private volatile OmniposeWorker omniposeWorker = null;
+    private final Object omniposeWorkerLock = new Object();
+    // Reuse raw Omnipose masks of already segmented images
+    public boolean useSegmentationCache = true;
+    public String segmentationCacheDir = System.getProperty("user.home")+File.separator+".cellpose"+File.separator+"dna_in_bacteria_cache";
+    public double segmentationCacheSize = 10;
+    private SegmentationCache segmentationCache = null;
+    
+    // Bio-Formats memo files of parsed images, to open them faster in next runs
+    public boolean useReaderMemo = true;
+    public String readerMemoDir = System.getProperty("user.home")+File.separator+".bioformats_memo";
+    
+    // Pipeline: max number of frames waiting for segmentation and for measurement
+    public int projectionQueueDepth = 2;
+    public int measureQueueDepth = 2;
+    // Number of files processed in parallel
+    public int nbFileWorkers = 1;
+    // Large frames are read and segmented by tiles of this size (pixels), 0 = whole frames
+    public int tileSize = 0;
+    // Pixels shared by neighbour tiles, should be bigger than the largest object
+    public int tileOverlap = 64;
+    // Frames whose planes are read ahead in the background (0 = planes read when needed), by decoders with their own reader
+    // Without the readers memo, each decoder parses the file again: a file is parsed 1 + prefetchThreads times
+    public int prefetchFrames = 2;
+    public int prefetchThreads = 2;
+    // Max memory of planes read ahead (MB)
+    public int prefetchMB = 512;
+    // Fraction of ImageJ memory that frames being processed can use
+    public double memoryFraction = 0.75;
+    public MemoryBudget memoryBudget = new MemoryBudget(memoryFraction);
+    // Also save results in a binary file stored by column
+    public boolean columnarResults = true;
+    // Results rows are written on disk once this size or number of rows is buffered, and at the end of each file
+    public int resultsFlushKB = 4096;
+    public int resultsFlushRows = 100000;
+    // Skip frames already analyzed by a previous run of the same folder
+    public boolean resume = false;
+    // Results images saved every N frames, 0 = no results images
+    public int overlayEvery = 1;
+    // Results images drawn and saved in parallel, and waiting for a writer
+    public int nbOverlayWriters = 2;
+    public int overlayQueueDepth = 4;
+    // Results images saved as gzip-compressed TIFF (.tif.gz), opened as they are by ImageJ
+    // Not deflate pages as label stacks: only FileSaver writes the ImageJ metadata of the composite (LUTs, display
+    // ranges), and it can't compress pages
+    public boolean compressOverlays = false;
+    // Label masks saved in one stack per series instead of results images
+    public boolean labelOverlays = false;
+    private final HashMap<String, LabelStack> labelStacks = new HashMap<>();
+    // Keep analyzing new image files written in the folder, until no file changed for watchIdleMinutes
+    public boolean watch = false;
+    public double watchIdleMinutes = 30;
+    // A new file is read once its size did not change for this time
+    public double watchStableSeconds = 10;
+    // Frames are split in nbShards shards, only frames of shard shardIndex are analyzed
+    public int nbShards = 1;
+    public int shardIndex = 0;
     
     // Bacteria
     public double minBactSurface = 0.4;
@@ -162,6 +237,31 @@ public class Tools {
     }
     
     
+    /**
+     * Open an image file with its own reader and OME-XML metadata
+     * @throws loci.common.services.DependencyException
+     * @throws loci.common.services.ServiceException
+     * @throws loci.formats.FormatException
+     * @throws java.io.IOException
+     */
+    public ImageProcessorReader openReader(String file) throws DependencyException, ServiceException, FormatException, IOException {
+        ServiceFactory factory = new ServiceFactory();
+        OMEXMLService service = factory.getInstance(OMEXMLService.class);
+        IMetadata meta = service.createOMEXMLMetadata();
+        ImageProcessorReader reader;
+        if (useReaderMemo) {
+            // Parsed metadata saved in the memo folder, files opened again are not parsed again
+            new File(readerMemoDir).mkdirs();
+            reader = new ImageProcessorReader(new ChannelSeparator(new Memoizer(LociPrefs.makeImageReader(), Memoizer.DEFAULT_MINIMUM_ELAPSED, new File(readerMemoDir))));
+        } else {
+            reader = new ImageProcessorReader();
+        }
+        reader.setMetadataStore(meta);
+        reader.setId(file);
+        return(reader);
+    }
+    
+    
     /**
      * Find image calibration
      * @param meta
@@ -263,12 +363,35 @@ public class Tools {
         gd.addMessage("Bacteria and DNA detection", Font.getFont("Monospace"), Color.blue);
         gd.addDirectoryField("Omnipose environment directory: ", omniposeEnvDirPath);
         gd.addDirectoryField("Omnipose models path: ", omniposeModelsPath); 
+        gd.addNumericField("Frames per Omnipose call (0 = all): ", omniposeBatchSize, 0);
+        gd.addCheckbox("Keep Omnipose running between frames", useOmniposeWorker);
+        gd.addDirectoryField("Omnipose scratch directory (empty = temp): ", omniposeScratchDir);
+        gd.addCheckbox("Reuse masks of already segmented images", useSegmentationCache);
+        gd.addDirectoryField("Masks cache directory: ", segmentationCacheDir);
+        gd.addNumericField("Masks cache max size (GB): ", segmentationCacheSize);
         gd.addMessage("Object size threshold ", Font.getFont("Monospace"), Color.blue);
         gd.addNumericField("Min bacterium surface (µm2): ", minBactSurface);
         gd.addNumericField("Max bacterium surface (µm2): ", maxBactSurface);
         gd.addNumericField("Min DNA surface (µm2): ", minDnaSurface);
         gd.addNumericField("Max DNA surface (µm2): ", maxDnaSurface);
         
+        gd.addMessage("Performance", Font.getFont("Monospace"), Color.blue);
+        gd.addNumericField("Frames waiting for segmentation: ", projectionQueueDepth, 0);
+        gd.addNumericField("Frames waiting for measurement: ", measureQueueDepth, 0);
+        gd.addNumericField("Files processed in parallel: ", nbFileWorkers, 0);
+        gd.addNumericField("Tile size for large images (pixels, 0 = whole image): ", tileSize, 0);
+        gd.addNumericField("Tiles overlap (pixels): ", tileOverlap, 0);
+        gd.addNumericField("Frames read ahead (0 = none): ", prefetchFrames, 0);
+        gd.addNumericField("Memory used by frames (% of ImageJ memory): ", memoryFraction*100, 0);
+        gd.addCheckbox("Resume previous run (skip frames already analyzed)", resume);
+        gd.addCheckbox("Also save results in binary columnar file", columnarResults);
+        gd.addNumericField("Save results images every N frames (0 = none): ", overlayEvery, 0);
+        gd.addNumericField("Results images saved in parallel: ", nbOverlayWriters, 0);
+        gd.addCheckbox("Compress results images (.tif.gz)", compressOverlays);
+        gd.addCheckbox("Save label masks only (one stack per series)", labelOverlays);
+        gd.addCheckbox("Watch folder for new images", watch);
+        gd.addNumericField("Stop watching after no new image for (min): ", watchIdleMinutes);
+        
         gd.addMessage("Image calibration", Font.getFont("Monospace"), Color.blue);
         gd.addNumericField("XY calibration (µm):", cal.pixelWidth);
         gd.showDialog();
@@ -281,10 +404,32 @@ public class Tools {
                 
         omniposeEnvDirPath = gd.getNextString();
         omniposeModelsPath = gd.getNextString();
+        omniposeBatchSize = (int) gd.getNextNumber();
+        useOmniposeWorker = gd.getNextBoolean();
+        omniposeScratchDir = gd.getNextString();
+        useSegmentationCache = gd.getNextBoolean();
+        segmentationCacheDir = gd.getNextString();
+        segmentationCacheSize = gd.getNextNumber();
         minBactSurface = (float) gd.getNextNumber();
         maxBactSurface = (float) gd.getNextNumber();
         minDnaSurface = (float) gd.getNextNumber();
         maxDnaSurface = (float) gd.getNextNumber();
+        projectionQueueDepth = (int) gd.getNextNumber();
+        measureQueueDepth = (int) gd.getNextNumber();
+        nbFileWorkers = (int) gd.getNextNumber();
+        tileSize = (int) gd.getNextNumber();
+        tileOverlap = (int) gd.getNextNumber();
+        prefetchFrames = (int) gd.getNextNumber();
+        memoryFraction = gd.getNextNumber() / 100;
+        resume = gd.getNextBoolean();
+        columnarResults = gd.getNextBoolean();
+        overlayEvery = (int) gd.getNextNumber();
+        nbOverlayWriters = (int) gd.getNextNumber();
+        compressOverlays = gd.getNextBoolean();
+        labelOverlays = gd.getNextBoolean();
+        watch = gd.getNextBoolean();
+        watchIdleMinutes = gd.getNextNumber();
+        memoryBudget = new MemoryBudget(memoryFraction);
         
         cal.pixelWidth = cal.pixelHeight = gd.getNextNumber();
         cal.pixelDepth = 1;
@@ -295,27 +440,110 @@ public class Tools {
     
     
     /**
-     * Do Z projection
+     * Read parameters from properties instead of the dialog box
+     * Missing keys keep their default value, channels are given by name or by index
+     * @return channels of bacteria and DNA
+     * @throws IllegalArgumentException if a value is invalid
      */
-    public ImagePlus doZProjection(ImagePlus img, int param) {
-        ZProjector zproject = new ZProjector();
-        zproject.setMethod(param);
-        zproject.setStartSlice(1);
-        zproject.setStopSlice(img.getNSlices());
-        zproject.setImage(img);
-        zproject.doProjection();
-       return(zproject.getProjection());
+    public String[] parameters(Properties params, String[] channels) {
+        String[] ch = {params.getProperty("bacteriaChannel", channels[0]), params.getProperty("dnaChannel", channels[Math.min(1, channels.length-1)])};
+        for (int i = 0; i < ch.length; i++) {
+            if (Arrays.asList(channels).contains(ch[i]))
+                continue;
+            try {
+                ch[i] = channels[Integer.parseInt(ch[i])];
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+                throw new IllegalArgumentException(channelsName[i] + ch[i] + " not in " + Arrays.toString(channels));
+            }
+        }
+        
+        try {
+            omniposeEnvDirPath = params.getProperty("omniposeEnvDir", omniposeEnvDirPath);
+            omniposeModelsPath = params.getProperty("omniposeModelsDir", omniposeModelsPath);
+            if (!omniposeModelsPath.endsWith(File.separator))
+                omniposeModelsPath += File.separator;
+            omniposeBactModel = params.getProperty("bacteriaModel", omniposeBactModel);
+            omniposeDnaModel = params.getProperty("dnaModel", omniposeDnaModel);
+            useGpu = Boolean.parseBoolean(params.getProperty("useGpu", ""+useGpu));
+            omniposeBatchSize = Integer.parseInt(params.getProperty("omniposeBatchSize", ""+omniposeBatchSize));
+            useOmniposeWorker = Boolean.parseBoolean(params.getProperty("useOmniposeWorker", ""+useOmniposeWorker));
+            omniposeWorkerTimeout = Integer.parseInt(params.getProperty("omniposeWorkerTimeout", ""+omniposeWorkerTimeout));
+            omniposeScratchDir = params.getProperty("omniposeScratchDir", omniposeScratchDir);
+            useSegmentationCache = Boolean.parseBoolean(params.getProperty("useSegmentationCache", ""+useSegmentationCache));
+            segmentationCacheDir = params.getProperty("segmentationCacheDir", segmentationCacheDir);
+            segmentationCacheSize = Double.parseDouble(params.getProperty("segmentationCacheSize", ""+segmentationCacheSize));
+            minBactSurface = Double.parseDouble(params.getProperty("minBactSurface", ""+minBactSurface));
+            maxBactSurface = Double.parseDouble(params.getProperty("maxBactSurface", ""+maxBactSurface));
+            minDnaSurface = Double.parseDouble(params.getProperty("minDnaSurface", ""+minDnaSurface));
+            maxDnaSurface = Double.parseDouble(params.getProperty("maxDnaSurface", ""+maxDnaSurface));
+            projectionQueueDepth = Integer.parseInt(params.getProperty("projectionQueueDepth", ""+projectionQueueDepth));
+            measureQueueDepth = Integer.parseInt(params.getProperty("measureQueueDepth", ""+measureQueueDepth));
+            nbFileWorkers = Integer.parseInt(params.getProperty("nbFileWorkers", ""+nbFileWorkers));
+            tileSize = Integer.parseInt(params.getProperty("tileSize", ""+tileSize));
+            tileOverlap = Integer.parseInt(params.getProperty("tileOverlap", ""+tileOverlap));
+            prefetchFrames = Integer.parseInt(params.getProperty("prefetchFrames", ""+prefetchFrames));
+            prefetchThreads = Integer.parseInt(params.getProperty("prefetchThreads", ""+prefetchThreads));
+            prefetchMB = Integer.parseInt(params.getProperty("prefetchMB", ""+prefetchMB));
+            memoryFraction = Double.parseDouble(params.getProperty("memoryPercent", ""+memoryFraction*100)) / 100;
+            resume = Boolean.parseBoolean(params.getProperty("resume", ""+resume));
+            columnarResults = Boolean.parseBoolean(params.getProperty("columnarResults", ""+columnarResults));
+            resultsFlushKB = Integer.parseInt(params.getProperty("resultsFlushKB", ""+resultsFlushKB));
+            resultsFlushRows = Integer.parseInt(params.getProperty("resultsFlushRows", ""+resultsFlushRows));
+            overlayEvery = Integer.parseInt(params.getProperty("overlayEvery", ""+overlayEvery));
+            nbOverlayWriters = Integer.parseInt(params.getProperty("overlayWriters", ""+nbOverlayWriters));
+            overlayQueueDepth = Integer.parseInt(params.getProperty("overlayQueueDepth", ""+overlayQueueDepth));
+            compressOverlays = Boolean.parseBoolean(params.getProperty("compressOverlays", ""+compressOverlays));
+            labelOverlays = Boolean.parseBoolean(params.getProperty("labelOverlays", ""+labelOverlays));
+            cal.pixelWidth = cal.pixelHeight = Double.parseDouble(params.getProperty("pixelSize", ""+cal.pixelWidth));
+            openingParameters(params);
+            nbShards = Integer.parseInt(params.getProperty("nbShards", ""+nbShards));
+            shardIndex = Integer.parseInt(params.getProperty("shardIndex", ""+shardIndex));
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid number: " + ex.getMessage());
+        }
+        if (minBactSurface > maxBactSurface || minDnaSurface > maxDnaSurface)
+            throw new IllegalArgumentException("Min surface is greater than max surface");
+        if (cal.pixelWidth <= 0)
+            throw new IllegalArgumentException("Invalid pixel size " + cal.pixelWidth);
+        if (nbShards < 1 || shardIndex < 0 || shardIndex >= nbShards)
+            throw new IllegalArgumentException("Invalid shard " + shardIndex + " of " + nbShards);
+        if (tileSize < 0 || tileOverlap < 0)
+            throw new IllegalArgumentException("Invalid tiles size " + tileSize + " or overlap " + tileOverlap);
+        if (omniposeWorkerTimeout < 1)
+            throw new IllegalArgumentException("Invalid Omnipose worker timeout " + omniposeWorkerTimeout);
+        if (prefetchFrames < 0 || prefetchThreads < 1 || prefetchMB < 1)
+            throw new IllegalArgumentException("Invalid read ahead of " + prefetchFrames + " frames with " + prefetchThreads + " threads in " + prefetchMB + " MB");
+        memoryBudget = new MemoryBudget(memoryFraction);
+        cal.pixelDepth = 1;
+        pixelSurf = cal.pixelWidth*cal.pixelWidth;
+        
+        return(ch);
     }
     
-   
+    
     /**
-    * Detect bacteria with Omnipose
-    */
-    public Objects3DIntPopulation omniposeDetection(ImagePlus imgBact, String model, double min, double max, boolean excludeBorders){
-        ImagePlus imgIn = new Duplicator().run(imgBact);
-        imgIn.setCalibration(cal);
-        
-        // Set Omnipose settings
+     * Read parameters needed before the first image is opened: readers memo and watch mode
+     * @throws IllegalArgumentException if a value is invalid
+     */
+    public void openingParameters(Properties params) {
+        try {
+            useReaderMemo = Boolean.parseBoolean(params.getProperty("useReaderMemo", ""+useReaderMemo));
+            readerMemoDir = params.getProperty("readerMemoDir", readerMemoDir);
+            watch = Boolean.parseBoolean(params.getProperty("watch", ""+watch));
+            watchIdleMinutes = Double.parseDouble(params.getProperty("watchIdleMinutes", ""+watchIdleMinutes));
+            watchStableSeconds = Double.parseDouble(params.getProperty("watchStableSeconds", ""+watchStableSeconds));
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid number: " + ex.getMessage());
+        }
+        if (watchIdleMinutes < 0 || watchStableSeconds < 0)
+            throw new IllegalArgumentException("Invalid watch idle time " + watchIdleMinutes + " or stable time " + watchStableSeconds);
+    }
+    
+    
+    /**
+     * Omnipose settings for a given model
+     */
+    private CellposeTaskSettings omniposeSettings(String model) {
         CellposeTaskSettings settings = new CellposeTaskSettings(omniposeModelsPath+model, 1, omniposeDiameter, omniposeEnvDirPath);
         settings.setVersion("0.7");
         settings.setOmni(true);
@@ -324,126 +552,375 @@ public class Tools {
         settings.setCellProbTh(omniposeMaskThreshold);
         settings.setFlowTh(omniposeFlowThreshold);
         settings.useGpu(useGpu);
+        settings.setScratchDir(omniposeScratchDir);
+        return(settings);
+    }
+    
+   
+    /**
+     * Start Omnipose worker with bacteria and DNA models loaded
+     * Omnipose is run once per call if the worker can't be started
+     */
+    public void startOmniposeWorker() {
+        synchronized (omniposeWorkerLock) {
+            if (!useOmniposeWorker || omniposeWorker != null)
+                return;
+            List<String> models = Arrays.asList(omniposeModelsPath+omniposeBactModel, omniposeModelsPath+omniposeDnaModel);
+            try {
+                OmniposeWorker worker = OmniposeWorker.start(omniposeSettings(omniposeBactModel), models, omniposeStubWorker, omniposeSharedMemory,
+                        omniposeWorkerTimeout);
+                if (worker.ping()) {
+                    omniposeWorker = worker;
+                } else {
+                    System.out.println("Omnipose worker not responding, Omnipose will be run once per call");
+                    worker.close();
+                }
+            } catch (IOException ex) {
+                System.out.println("Omnipose worker can't be started (" + ex.getMessage() + "), Omnipose will be run once per call");
+            }
+        }
+    }
+    
+    
+    /**
+     * Stop Omnipose worker
+     */
+    public void stopOmniposeWorker() {
+        synchronized (omniposeWorkerLock) {
+            if (omniposeWorker != null) {
+                omniposeWorker.close();
+                omniposeWorker = null;
+            }
+        }
+    }
+    
+    
+    /**
+     * Stop Omnipose worker if it is still the given worker, not already stopped by another pipeline
+     */
+    private void stopOmniposeWorker(OmniposeWorker worker) {
+        synchronized (omniposeWorkerLock) {
+            if (omniposeWorker == worker)
+                stopOmniposeWorker();
+        }
+    }
+    
+    
+    /**
+     * Masks cache, null if disabled
+     */
+    private synchronized SegmentationCache segmentationCache() {
+        if (useSegmentationCache && segmentationCache == null)
+            segmentationCache = new SegmentationCache(segmentationCacheDir, (long) (segmentationCacheSize*1024*1024*1024));
+        return(useSegmentationCache ? segmentationCache : null);
+    }
+    
+    
+    /**
+     * Cache key of an image, null if the cache is disabled or the key can't be computed
+     * @param worker mask computed by the Omnipose worker instead of the command line
+     */
+    private String segmentationCacheKey(ImagePlus img, String model, boolean worker) {
+        SegmentationCache cache = segmentationCache();
+        if (cache == null)
+            return(null);
+        try {
+            return(cache.key(img, omniposeSettings(model), worker));
+        } catch (IOException ex) {
+            System.out.println("Mask cache key can't be computed: " + ex.getMessage());
+            return(null);
+        }
+    }
+    
+    
+    /**
+     * Segment a batch of images with Omnipose, only images without mask in the cache are sent to Omnipose
+     * @return masks, in the same order as the images
+     * @throws IOException if Omnipose failed, masks found in the cache are closed
+     */
+    private ArrayList<ImagePlus> omniposeSegment(List<ImagePlus> imgs, String model) throws IOException {
+        ArrayList<ImagePlus> masks = new ArrayList<>(Collections.nCopies(imgs.size(), null));
+        String[] keys = new String[imgs.size()];
+        ArrayList<Integer> toSegment = new ArrayList<>();
+        // Masks expected from the worker if it is running, masks of the other way are not cached
+        boolean worker = omniposeWorker != null;
+        for (int i = 0; i < imgs.size(); i++) {
+            keys[i] = segmentationCacheKey(imgs.get(i), model, worker);
+            ImagePlus mask = (keys[i] == null) ? null : segmentationCache.get(keys[i]);
+            if (mask != null) {
+                mask.setCalibration(imgs.get(i).getCalibration());
+                masks.set(i, mask);
+            } else {
+                toSegment.add(i);
+            }
+        }
+        if (toSegment.isEmpty())
+            return(masks);
+        if (toSegment.size() < imgs.size())
+            System.out.println((imgs.size() - toSegment.size()) + " masks found in cache");
         
-        // Run Omnipose
-        CellposeSegmentImgPlusAdvanced cellpose = new CellposeSegmentImgPlusAdvanced(settings, imgIn);
-        ImagePlus imgOut = cellpose.run();
-        imgOut.setCalibration(cal);
-        
-        Objects3DIntPopulation pop = new Objects3DIntPopulation(ImageHandler.wrap(imgOut));
+        ArrayList<ImagePlus> imgsToSegment = new ArrayList<>(toSegment.size());
+        for (int i : toSegment)
+            imgsToSegment.add(imgs.get(i));
+        ArrayList<ImagePlus> newMasks;
+        try {
+            newMasks = runOmnipose(imgsToSegment, model);
+        } catch (IOException ex) {
+            for (ImagePlus mask : masks) {
+                if (mask != null)
+                    flush_close(mask);
+            }
+            throw ex;
+        }
+        for (int j = 0; j < toSegment.size(); j++) {
+            int i = toSegment.get(j);
+            masks.set(i, newMasks.get(j));
+            if (keys[i] != null && Boolean.TRUE.equals(newMasks.get(j).getProperty(OmniposeWorker.WORKER_MASK)) == worker)
+                segmentationCache.put(keys[i], newMasks.get(j));
+        }
+        return(masks);
+    }
+    
+    
+    /**
+     * Run Omnipose on a batch of images, with the worker if it is running
+     * If the worker fails, the batch is segmented by a single Omnipose call, and the worker is stopped only if it
+     * doesn't answer anymore, so a bad image doesn't stop it for all files
+     * @return masks, in the same order as the images
+     * @throws IOException if Omnipose failed
+     */
+    private ArrayList<ImagePlus> runOmnipose(List<ImagePlus> imgs, String model) throws IOException {
+        OmniposeWorker worker = omniposeWorker;
+        if (worker != null) {
+            ArrayList<ImagePlus> masks = new ArrayList<>(imgs.size());
+            try {
+                for (ImagePlus img : imgs)
+                    masks.add(worker.segment(img, model));
+                return(masks);
+            } catch (IOException ex) {
+                for (ImagePlus mask : masks)
+                    flush_close(mask);
+                if (worker.ping()) {
+                    System.out.println("Omnipose worker failed (" + ex.getMessage() + "), batch segmented by a single Omnipose call");
+                } else {
+                    System.out.println("Omnipose worker failed (" + ex.getMessage() + "), Omnipose will be run once per call");
+                    stopOmniposeWorker(worker);
+                }
+            }
+        }
+        return(new CellposeSegmentImgPlusBatch(omniposeSettings(model), imgs).run());
+    }
+    
+    
+    /**
+    * Omnipose masks of a batch of images, with a single Omnipose call
+    * @return masks, in the same order as the images
+    * @throws IOException if Omnipose failed for an image, no mask is returned
+    */
+    public ArrayList<ImagePlus> omniposeMasks(List<ImagePlus> imgs, String model) throws IOException {
+        for (ImagePlus img : imgs)
+            img.setCalibration(cal);
+        return(omniposeSegment(imgs, model));
+    }
+    
+    
+    /**
+     * Omnipose run time of a mask in seconds, as reported by Omnipose, 0 if the mask comes from the cache
+     */
+    public double omniposeInferenceTime(ImagePlus mask) {
+        Object time = mask.getProperty(OmniposeWorker.INFERENCE_TIME);
+        return((time instanceof Number) ? ((Number) time).doubleValue() : 0);
+    }
+    
+    
+    /**
+     * Get objects of an Omnipose mask, without objects touching borders and with size filtering
+     * Objects are kept as runs of pixels, labelled from 1 in objects order
+     */
+    public LabelObjects filterDetections(ImagePlus imgOut, double min, double max, boolean excludeBorders) {
+        LabelObjects objects = new LabelObjects(imgOut.getProcessor());
         if (excludeBorders)
-            pop = new Objects3DIntPopulationComputation(pop).getExcludeBorders(ImageHandler.wrap(imgOut), false);
-        pop = new Objects3DIntPopulationComputation(pop).getFilterSize(min/pixelSurf, max/pixelSurf);
-        pop.resetLabels();
-        
-        // Close images
-        flush_close(imgIn);
-        flush_close(imgOut);
-        
-        return(pop);
+            objects.excludeBorders();
+        return(objects.filterSize(min/pixelSurf, max/pixelSurf).relabel());
     }
     
 
     /**
      * Find DNA in bacteria
-     * Set label of mother bacteria in DNA object
+     * Set label of mother bacteria as parent of DNA objects, remove DNA not in bacteria and label them again from 1
+     * Each DNA centroid is computed once and looked up in the bacteria label image
      */
-    public void dnaBactLink(Objects3DIntPopulation bactPop, Objects3DIntPopulation dnaPop) {
-        if (bactPop.getNbObjects() != 0 && dnaPop.getNbObjects() != 0) {
-            for (Object3DInt bact : bactPop.getObjects3DInt()) {
-                for (Object3DInt dna : dnaPop.getObjects3DInt()) {
-                    MeasureCentroid dnaCenter = new MeasureCentroid(dna);
-                    if (bact.contains(dnaCenter.getCentroidRoundedAsVoxelInt())){
-                       dna.setIdObject(bact.getLabel()); 
-                    }
-                }
+    public void dnaBactLink(LabelObjects bacts, LabelObjects dnas) {
+        if (bacts.nbObjects != 0 && dnas.nbObjects != 0) {
+            float[] bactLabels = new float[bacts.width*bacts.height];
+            for (int b = 0; b < bacts.nbObjects; b++)
+                bacts.paste(b, bacts.label[b], bactLabels, bacts.width, 0, 0);
+            for (int d = 0; d < dnas.nbObjects; d++) {
+                double[] dnaCenter = dnas.centroid(d);
+                int x = (int) Math.round(dnaCenter[0]), y = (int) Math.round(dnaCenter[1]);
+                if (x >= 0 && x < bacts.width && y >= 0 && y < bacts.height)
+                    dnas.parent[d] = (int) bactLabels[y*bacts.width + x];
             }
         }
         // Remove DNA not in bacteria
-        dnaPop.getObjects3DInt().removeIf(p -> p.getIdObject() == 0);
-        dnaPop.resetLabels();
+        dnas.filterParent().relabel();
     }
     
    
     /**
-     * Compute bacteria parameters and save them in file
-     * @throws java.io.IOException
+     * Compute bacteria parameters
+     * Objects are measured in one scan of the bacteria and DNA label images, drawn from their runs
+     * DNA parents are bacteria labels given by dnaBactLink, DNA are then relabelled from 1 in each bacterium
      */
-    public void saveResults(Objects3DIntPopulation bactPop, Objects3DIntPopulation dnaPop, ImagePlus dnaImg, String imgName, int time, BufferedWriter file) throws IOException {
-        for (Object3DInt bact : bactPop.getObjects3DInt()) {
-            float bactLabel = bact.getLabel();
-            double bactSurf = new MeasureVolume(bact).getVolumeUnit();
-            VoxelInt feret1Unit = new MeasureFeret(bact).getFeret1Unit();
-            VoxelInt feret2Unit = new MeasureFeret(bact).getFeret2Unit();
-            double bactLength = feret1Unit.distance(feret2Unit)*cal.pixelWidth;
+    public FrameResults getResults(LabelObjects bacts, LabelObjects dnas, ImagePlus dnaImg, String imgName, int time) {
+        // Objects measured with their index + 1
+        bacts.relabel();
+        dnas.relabel();
+        ImagePlus bactLabels = bacts.toImage(cal);
+        ImagePlus dnaLabels = dnas.toImage(cal);
+        LabelMeasurements bactMeas = new LabelMeasurements(ImageHandler.wrap(bactLabels), bacts.nbObjects, null);
+        LabelMeasurements dnaMeas = new LabelMeasurements(ImageHandler.wrap(dnaLabels), dnas.nbObjects, ImageHandler.wrap(dnaImg));
+        flush_close(bactLabels);
+        flush_close(dnaLabels);
+        
+        // DNA indexes grouped by mother bacterium, in objects order
+        int[] dnaStart = new int[bacts.nbObjects+1];
+        for (int i = 0; i < dnas.nbObjects; i++)
+            dnaStart[dnas.parent[i]]++;
+        for (int b = 0; b < bacts.nbObjects; b++)
+            dnaStart[b+1] += dnaStart[b];
+        int[] dnaInBact = new int[dnas.nbObjects];
+        int[] next = Arrays.copyOf(dnaStart, bacts.nbObjects);
+        for (int i = 0; i < dnas.nbObjects; i++)
+            dnaInBact[next[dnas.parent[i]-1]++] = i;
+        
+        double voxelSize = cal.pixelWidth*cal.pixelHeight*cal.pixelDepth;
+        FrameResults rows = new FrameResults(imgName, time, bacts.nbObjects + dnas.nbObjects);
+        for (int b = 0; b < bacts.nbObjects; b++) {
+            float bactLabel = bacts.label[b];
+            double bactSurf = bactMeas.area[b+1]*voxelSize;
+            double bactLength = bactMeas.feret[b+1]*cal.pixelWidth;
             
-            Objects3DIntPopulation dnaBactPop = findDnaInBact(bactLabel, dnaPop);
-            int dnaNb = dnaBactPop.getNbObjects();
+            int dnaNb = dnaStart[b+1] - dnaStart[b];
             if (dnaNb == 0) {
-                file.write(imgName+"\t"+time+"\t"+bactLabel+"\t"+bactSurf+"\t"+bactLength+"\t"+dnaNb+"\n");
+                rows.add(bactLabel, bactSurf, bactLength);
             } else {
-                for (Object3DInt dna: dnaBactPop.getObjects3DInt()) {
-                    double dnaSurf = new MeasureVolume(dna).getVolumeUnit();
-                    double dnaInt = new MeasureIntensity(dna, ImageHandler.wrap(dnaImg)).getValueMeasurement(MeasureIntensity.INTENSITY_SUM);
-                    double dnaDist = dnaBactDistance(dna, bact);
-                    file.write(imgName+"\t"+time+"\t"+bactLabel+"\t"+bactSurf+"\t"+bactLength+"\t"+dnaNb+"\t"+dna.getLabel()+"\t"+dnaSurf+"\t"+dnaInt+"\t"+dnaDist+"\n");
+                for (int k = dnaStart[b]; k < dnaStart[b+1]; k++) {
+                    int d = dnaInBact[k];
+                    dnas.label[d] = k - dnaStart[b] + 1;
+                    double dnaSurf = dnaMeas.area[d+1]*voxelSize;
+                    double dnaInt = dnaMeas.intensitySum[d+1];
+                    double dnaDist = dnaMeas.centroidDistance(d+1, bactMeas, b+1)*cal.pixelWidth;
+                    rows.add(bactLabel, bactSurf, bactLength, dnaNb, dnas.label[d], dnaSurf, dnaInt, dnaDist);
                 }
             }
-            file.flush();
         }
+        return(rows);
     }
     
     
     /**
-     * Get DNA in bacterium
+     * Check if result images of a frame are already saved
      */
-    private Objects3DIntPopulation findDnaInBact(float bactLabel, Objects3DIntPopulation dnaPop) {
-        Objects3DIntPopulation dnaBactPop = new Objects3DIntPopulation();
-        for (Object3DInt dna : dnaPop.getObjects3DInt()) {
-                if (dna.getIdObject() == bactLabel)
-                    dnaBactPop.addObject(dna);
-        }
-        dnaBactPop.resetLabels();
-        return(dnaBactPop) ;           
+    public boolean resultsDrawn(String imgName, String outDir) {
+        // Pages of label stacks are not looked for, a time saved again replaces the previous one
+        if (labelOverlays)
+            return(false);
+        String ext = compressOverlays ? ".tif.gz" : ".tif";
+        return(new File(outDir+imgName+"_bacteria"+ext).exists() && new File(outDir+imgName+"_DNA"+ext).exists());
     }
     
     
     /**
-     * Compute distance between DNA center and bacterium center
+     * Results images are saved for this frame
      */
-    private double dnaBactDistance(Object3DInt dna, Object3DInt bact) {
-        Voxel3D bactCenter = new MeasureCentroid(bact).getCentroidAsVoxel();
-        Voxel3D dnaCenter = new MeasureCentroid(dna).getCentroidAsVoxel();
-        double dist = bactCenter.distance(dnaCenter)*cal.pixelWidth;
-        return(dist);
+    public boolean overlayDue(int time) {
+        return(overlayEvery > 0 && time % overlayEvery == 0);
     }
     
     
     /**
      * Save results in images
      */
-    public void drawResults(ImagePlus img1, ImagePlus img2, Objects3DIntPopulation bactPop, Objects3DIntPopulation dnaPop, String imgName, String outDir) {
-        ImageHandler imgBact = ImageHandler.wrap(img1).createSameDimensions();
-        bactPop.drawInImage(imgBact);
-        IJ.run(imgBact.getImagePlus(), "glasbey on dark", "");
-        ImagePlus[] imgColors1 = {imgBact.getImagePlus(), null, null, img1};
-        ImagePlus imgOut1 = new RGBStackMerge().mergeHyperstacks(imgColors1, false);
-        imgOut1.setCalibration(cal);
-        FileSaver ImgObjectsFile1 = new FileSaver(imgOut1);
-        ImgObjectsFile1.saveAsTiff(outDir+imgName+"_bacteria.tif");      
+    public void drawResults(ImagePlus img1, ImagePlus img2, LabelObjects bacts, LabelObjects dnas, String imgName, String outDir) throws IOException {
+        ImagePlus imgBact = drawLabels(img1, bacts);
+        ImagePlus imgOut1 = overlay(imgBact, img1, true);
+        saveOverlay(imgOut1, outDir+imgName+"_bacteria.tif");
         
-        ImageHandler imgDna = ImageHandler.wrap(img2).createSameDimensions();
-        dnaPop.drawInImage(imgDna);
-        ImagePlus[] imgColors2 = {imgDna.getImagePlus(), null, null, img2};
-        ImagePlus imgOut2 = new RGBStackMerge().mergeHyperstacks(imgColors2, false);
-        imgOut2.setCalibration(cal);
-        FileSaver ImgObjectsFile2 = new FileSaver(imgOut2);
-        ImgObjectsFile2.saveAsTiff(outDir+imgName+"_DNA.tif");
+        ImagePlus imgDna = drawLabels(img2, dnas);
+        ImagePlus imgOut2 = overlay(imgDna, img2, false);
+        saveOverlay(imgOut2, outDir+imgName+"_DNA.tif");
         
-        flush_close(imgBact.getImagePlus());
-        flush_close(imgDna.getImagePlus());
+        flush_close(imgBact);
+        flush_close(imgDna);
         flush_close(imgOut1);
         flush_close(imgOut2);
     }
     
+    
+    /**
+     * Objects drawn with their label in an image of the same type as img
+     */
+    private ImagePlus drawLabels(ImagePlus img, LabelObjects objects) {
+        ImagePlus labels = new ImagePlus("labels", objects.draw(img.getProcessor().createProcessor(img.getWidth(), img.getHeight())));
+        labels.setCalibration(img.getCalibration());
+        return(labels);
+    }
+    
+    
+    /**
+     * Labels over an image, as saved in results images
+     * @param glasbey labels in glasbey colors, else in red
+     */
+    public ImagePlus overlay(ImagePlus labels, ImagePlus img, boolean glasbey) {
+        if (glasbey)
+            IJ.run(labels, "glasbey on dark", "");
+        ImagePlus[] imgColors = {labels, null, null, img};
+        ImagePlus imgOut = new RGBStackMerge().mergeHyperstacks(imgColors, false);
+        imgOut.setCalibration(cal);
+        return(imgOut);
+    }
+    
+    
+    /**
+     * Save bacteria and DNA label masks of a frame in the label stack of its series
+     * @param time time point, starting at 1
+     */
+    public void saveLabels(ImagePlus img, LabelObjects bacts, LabelObjects dnas, String seriesName, int time, String outDir) throws IOException {
+        short[] bactLabels = (short[]) bacts.draw(new ShortProcessor(img.getWidth(), img.getHeight())).getPixels();
+        short[] dnaLabels = (short[]) dnas.draw(new ShortProcessor(img.getWidth(), img.getHeight())).getPixels();
+        labelStack(outDir + seriesName + "_labels" + (nbShards > 1 ? "_shard" + shardIndex : "") + ".tif")
+                .append(time, img.getWidth(), img.getHeight(), bactLabels, dnaLabels);
+    }
+    
+    
+    /**
+     * Label stack of a file, started again at its first use unless the run is resumed
+     */
+    private synchronized LabelStack labelStack(String path) {
+        return(labelStacks.computeIfAbsent(path, k -> new LabelStack(new File(k), resume)));
+    }
+    
+    
+    /**
+     * Save a results image as TIFF, gzip-compressed if asked
+     * The whole TIFF written by FileSaver is compressed, to keep the composite channels colors and display ranges.
+     * The image is written in a temporary file first, so a results image on disk is always complete.
+     */
+    private void saveOverlay(ImagePlus img, String path) throws IOException {
+        File file = new File(compressOverlays ? path + ".gz" : path);
+        File tmp = new File(file.getPath() + ".tmp");
+        if (compressOverlays) {
+            byte[] tiff = new FileSaver(img).serialize();
+            if (tiff == null)
+                throw new IOException(file.getName() + " can't be encoded");
+            try (OutputStream out = new GZIPOutputStream(new FileOutputStream(tmp), 1 << 16)) {
+                out.write(tiff);
+            }
+        } else if (!new FileSaver(img).saveAsTiff(tmp.getPath())) {
+            throw new IOException(file.getName() + " can't be saved");
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
 }
@@ -0,0 +1,74 @@
+package DNA_in_bacteria_Tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+
+/**
+ * Tab-separated results file (results.xls), one line per row
+ * Numbers are formatted as Java does, in a reused StringBuilder, so no String is created per field.
+ * @author Orion-CIRB
+ */
+public class TsvResultsSink extends BufferedResultsSink {
+
+    private static final Charset CHARSET = Charset.defaultCharset();
+
+    private final StringBuilder number = new StringBuilder(32);
+
+
+    public TsvResultsSink(File file, boolean append) throws IOException {
+        super(file, append);
+        if (position() == 0)
+            putBytes((String.join("\t", FrameResults.COLUMNS) + "\n").getBytes(CHARSET));
+    }
+
+
+    @Override
+    public void write(FrameResults rows) {
+        byte[] imgName = rows.imgName.getBytes(CHARSET);
+        for (int i = 0; i < rows.size; i++) {
+            putBytes(imgName);
+            putByte('\t');
+            putNumber(rows.time);
+            putByte('\t');
+            putNumber(rows.bactLabel[i]);
+            putByte('\t');
+            putNumber(rows.bactSurf[i]);
+            putByte('\t');
+            putNumber(rows.bactLength[i]);
+            putByte('\t');
+            putNumber(rows.dnaNb[i]);
+            // No DNA columns for bacteria without DNA
+            if (rows.dnaNb[i] > 0) {
+                putByte('\t');
+                putNumber(rows.dnaLabel[i]);
+                putByte('\t');
+                putNumber(rows.dnaSurf[i]);
+                putByte('\t');
+                putNumber(rows.dnaInt[i]);
+                putByte('\t');
+                putNumber(rows.dnaDist[i]);
+            }
+            putByte('\n');
+        }
+    }
+
+
+    private void putNumber(int v) {
+        number.setLength(0);
+        putAscii(number.append(v));
+    }
+
+
+    private void putNumber(float v) {
+        number.setLength(0);
+        putAscii(number.append(v));
+    }
+
+
+    private void putNumber(double v) {
+        number.setLength(0);
+        putAscii(number.append(v));
+    }
+}
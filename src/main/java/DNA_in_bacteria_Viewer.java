@@ -0,0 +1,119 @@
+import DNA_in_bacteria_Tools.LabelStack;
+import DNA_in_bacteria_Tools.StreamingZProjector;
+import DNA_in_bacteria_Tools.Tools;
+import fiji.util.gui.GenericDialogPlus;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.plugin.PlugIn;
+import ij.plugin.ZProjector;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.io.File;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import loci.formats.meta.IMetadata;
+import loci.plugins.util.ImageProcessorReader;
+import org.scijava.util.ArrayUtils;
+
+
+/**
+ * Show results images of a frame from the label stacks saved by DNA in bacteria
+ * The frame is projected again from the original image, and its label masks are drawn over it
+ * as in the _bacteria.tif and _DNA.tif results images.
+ * @author Orion-CIRB
+ */
+public class DNA_in_bacteria_Viewer implements PlugIn {
+
+    private final Tools tools = new Tools();
+
+
+    @Override
+    public void run(String arg) {
+        String file = IJ.getFilePath("Choose original image...");
+        if (file == null)
+            return;
+        try {
+            ImageProcessorReader reader = tools.openReader(file);
+            try {
+                IMetadata meta = (IMetadata) reader.getMetadataStore();
+                tools.findImageCalib(meta);
+                String[] channels = tools.findChannels(file, meta, reader);
+                String[] series = new String[reader.getSeriesCount()];
+                for (int s = 0; s < series.length; s++)
+                    series[s] = meta.getImageName(s);
+
+                GenericDialogPlus gd = new GenericDialogPlus("Results viewer");
+                gd.addChoice("Series: ", series, series[0]);
+                gd.addNumericField("Time: ", 1, 0);
+                // Same defaults as the analysis dialog box
+                gd.addChoice("Bacteria channel: ", channels, channels[0]);
+                gd.addChoice("DNA channel: ", channels, channels[Math.min(1, channels.length-1)]);
+                gd.addDirectoryField("Results folder: ", new File(file).getParent() + File.separator + "Results");
+                gd.showDialog();
+                if (gd.wasCanceled())
+                    return;
+                int s = gd.getNextChoiceIndex();
+                int time = (int) gd.getNextNumber();
+                int indexBact = ArrayUtils.indexOf(channels, gd.getNextChoice());
+                int indexDna = ArrayUtils.indexOf(channels, gd.getNextChoice());
+                String outDir = gd.getNextString();
+
+                ShortProcessor[] masks = findMasks(outDir, series[s], time);
+                if (masks == null) {
+                    IJ.showMessage("Error", "No label masks found for " + series[s] + " at time " + time + " in " + outDir);
+                    return;
+                }
+                reader.setSeries(s);
+                if (time < 1 || time > reader.getSizeT()) {
+                    IJ.showMessage("Error", "Time " + time + " not in " + series[s]);
+                    return;
+                }
+                StreamingZProjector projector = new StreamingZProjector(ZProjector.AVG_METHOD);
+                ImagePlus imgBact = projector.project(reader, indexBact, time-1, tools.cal);
+                ImagePlus imgDna = projector.project(reader, indexDna, time-1, tools.cal);
+
+                String name = series[s] + "_t" + time;
+                ImagePlus imgOut1 = tools.overlay(labels(masks[0]), imgBact, true);
+                imgOut1.setTitle(name + "_bacteria");
+                imgOut1.show();
+                ImagePlus imgOut2 = tools.overlay(labels(masks[1]), imgDna, false);
+                imgOut2.setTitle(name + "_DNA");
+                imgOut2.show();
+            } finally {
+                reader.close();
+            }
+        } catch (Exception ex) {
+            Logger.getLogger(DNA_in_bacteria_Viewer.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+
+    /**
+     * Masks of a frame in the label stacks of its series, shards stacks included
+     */
+    private ShortProcessor[] findMasks(String outDir, String seriesName, int time) throws Exception {
+        File[] stacks = new File(outDir).listFiles((dir, name) -> name.startsWith(seriesName + "_labels") && name.endsWith(".tif"));
+        if (stacks == null)
+            return(null);
+        Arrays.sort(stacks);
+        for (File stack : stacks) {
+            ShortProcessor[] masks = LabelStack.read(stack, time);
+            if (masks != null)
+                return(masks);
+        }
+        return(null);
+    }
+
+
+    /**
+     * 32-bit labels image, same type as the projections
+     */
+    private ImagePlus labels(ShortProcessor mask) {
+        ImageProcessor ip = mask.convertToFloat();
+        ip.resetMinAndMax();
+        ImagePlus labels = new ImagePlus("labels", ip);
+        labels.setCalibration(tools.cal);
+        return(labels);
+    }
+}
@@ -0,0 +1,121 @@
+"""
+Stub of omnipose_worker.py, to test the worker protocol without an Omnipose environment
+
+Runs with any Python 3, without third-party packages.
+Instead of Omnipose, pixels above the image mean are labelled as 4-connected components.
+Images sent to a model named "hang" are never answered, as a stuck Omnipose.
+"""
+import argparse
+import array
+import mmap
+import struct
+import sys
+import time
+
+# "DNAB" read as a little-endian int32
+SHM_MAGIC = 0x42414E44
+
+
+def read_exact(stream, size):
+    data = bytearray()
+    while len(data) < size:
+        chunk = stream.read(size - len(data))
+        if not chunk:
+            raise EOFError("stdin closed")
+        data.extend(chunk)
+    return bytes(data)
+
+
+def label(pixels, width, height):
+    threshold = sum(pixels) / len(pixels)
+    labels = array.array("H", bytes(2 * len(pixels)))
+    current = 0
+    for start in range(len(pixels)):
+        if pixels[start] <= threshold or labels[start]:
+            continue
+        current = current % 65535 + 1
+        labels[start] = current
+        stack = [start]
+        while stack:
+            i = stack.pop()
+            x, y = i % width, i // width
+            for n, inside in ((i - 1, x > 0), (i + 1, x < width - 1), (i - width, y > 0), (i + width, y < height - 1)):
+                if inside and not labels[n] and pixels[n] > threshold:
+                    labels[n] = current
+                    stack.append(n)
+    return labels
+
+
+def main():
+    parser = argparse.ArgumentParser()
+    parser.add_argument("--model", action="append", default=[])
+    args, _ = parser.parse_known_args()
+    names = [model.split("=", 1)[0] for model in args.model]
+
+    stdin = sys.stdin.buffer
+    stdout = sys.stdout.buffer
+    stdout.write(("READY " + " ".join(names) + "\n").encode("ascii"))
+    stdout.flush()
+
+    while True:
+        line = stdin.readline()
+        if not line:
+            break
+        text = line.decode("utf-8").strip()
+        request = text.split()
+        if not request:
+            continue
+        if request[0] == "PING":
+            stdout.write(b"PONG\n")
+        elif request[0] == "QUIT":
+            stdout.write(b"BYE\n")
+            stdout.flush()
+            break
+        elif request[0].startswith("SEGMENT") and request[1] == "hang":
+            while True:
+                time.sleep(60)
+        elif request[0] == "SEGMENT":
+            name, width, height = request[1], int(request[2]), int(request[3])
+            pixels = array.array("f", read_exact(stdin, 4 * width * height))
+            if sys.byteorder != "little":
+                pixels.byteswap()
+            if name not in names:
+                stdout.write(("ERROR model " + name + " not loaded\n").encode("ascii"))
+            else:
+                start = time.time()
+                labels = label(pixels, width, height)
+                elapsed = time.time() - start
+                if sys.byteorder != "little":
+                    labels.byteswap()
+                stdout.write(("MASK %d %d %f\n" % (width, height, elapsed)).encode("ascii"))
+                stdout.write(labels.tobytes())
+        elif request[0] == "SEGMENT_SHM":
+            name, path = text.split(" ", 2)[1:]
+            with open(path, "r+b") as f:
+                mm = mmap.mmap(f.fileno(), 0)
+                magic, width, height, dtype = struct.unpack_from("<4i", mm, 0)
+                if magic != SHM_MAGIC or dtype != 0 or name not in names:
+                    stdout.write(b"ERROR bad request\n")
+                else:
+                    start = time.time()
+                    pixels = array.array("f", mm[16:16 + 4 * width * height])
+                    if sys.byteorder != "little":
+                        pixels.byteswap()
+                    labels = label(pixels, width, height)
+                    if sys.byteorder != "little":
+                        labels.byteswap()
+                    mm[16 + 4 * width * height:16 + 6 * width * height] = labels.tobytes()
+                    mm.flush()
+                    elapsed = time.time() - start
+                    stdout.write(("MASK %d %d %f\n" % (width, height, elapsed)).encode("ascii"))
+                mm.close()
+        else:
+            stdout.write(("ERROR unknown request " + request[0] + "\n").encode("ascii"))
+        stdout.flush()
+
+
+if __name__ == "__main__":
+    try:
+        main()
+    except EOFError:
+        pass
@@ -0,0 +1,134 @@
+"""
+Long-lived Omnipose worker for the DNA_in_bacteria plugin
+
+Models are loaded once, then images are segmented on request.
+Protocol on stdin/stdout (one ASCII line per message, binary payloads are little-endian):
+  PING                                        -> PONG
+  SEGMENT model width height + float32 pixels -> MASK width height seconds + uint16 labels
+                                              or ERROR message
+  SEGMENT_SHM model path                      -> MASK width height seconds
+                                              or ERROR message
+With SEGMENT_SHM, the image is read from and labels are written to the memory-mapped file at path:
+  int32 magic, int32 width, int32 height, int32 dtype (0 = float32), float32 image, uint16 labels
+  QUIT                                        -> BYE
+READY is written once all models are loaded, logs go to stderr.
+"""
+import argparse
+import os
+import sys
+import time
+
+import numpy as np
+
+# "DNAB" read as a little-endian int32
+SHM_MAGIC = 0x42414E44
+
+
+def read_exact(stream, size):
+    data = bytearray()
+    while len(data) < size:
+        chunk = stream.read(size - len(data))
+        if not chunk:
+            raise EOFError("stdin closed")
+        data.extend(chunk)
+    return bytes(data)
+
+
+def threshold_option(version):
+    # Same rule as CellposeTask for the command line: name of the threshold option in each Cellpose version
+    if version in ("0.6", "2.0"):
+        return "cellprob_threshold"
+    if version in ("0.7", "1.0"):
+        return "mask_threshold"
+    return None
+
+
+def segment(model, img, args):
+    start = time.time()
+    options = {}
+    option = threshold_option(args.version)
+    if option:
+        options[option] = args.threshold
+    masks = model.eval(img, channels=[args.chan, args.chan2], diameter=args.diameter,
+                       flow_threshold=args.flow_threshold, omni=args.omni, cluster=args.cluster, **options)[0]
+    return np.ascontiguousarray(masks, dtype="<u2"), time.time() - start
+
+
+def main():
+    parser = argparse.ArgumentParser()
+    parser.add_argument("--model", action="append", default=[], help="name=path of a model to load")
+    parser.add_argument("--chan", type=int, default=0)
+    parser.add_argument("--chan2", type=int, default=0)
+    parser.add_argument("--diameter", type=float, default=0)
+    parser.add_argument("--flow_threshold", type=float, default=0.4)
+    parser.add_argument("--version", default="2.0", help="Cellpose version, gives the threshold option")
+    parser.add_argument("--threshold", type=float, default=0)
+    parser.add_argument("--omni", action="store_true")
+    parser.add_argument("--cluster", action="store_true")
+    parser.add_argument("--use_gpu", action="store_true")
+    args = parser.parse_args()
+
+    stdin = sys.stdin.buffer
+    stdout = sys.stdout.buffer
+    # Keep stdout for the protocol only
+    sys.stdout = sys.stderr
+
+    from cellpose import models
+    loaded = {}
+    for model in args.model:
+        name, path = model.split("=", 1)
+        print("Loading model " + path, file=sys.stderr)
+        loaded[name] = models.CellposeModel(gpu=args.use_gpu, pretrained_model=path, omni=args.omni)
+
+    stdout.write(("READY " + " ".join(loaded) + "\n").encode("ascii"))
+    stdout.flush()
+
+    while True:
+        line = stdin.readline()
+        if not line:
+            break
+        text = line.decode("utf-8").strip()
+        request = text.split()
+        if not request:
+            continue
+        if request[0] == "PING":
+            stdout.write(b"PONG\n")
+        elif request[0] == "QUIT":
+            stdout.write(b"BYE\n")
+            stdout.flush()
+            break
+        elif request[0] == "SEGMENT":
+            name, width, height = request[1], int(request[2]), int(request[3])
+            pixels = read_exact(stdin, 4 * width * height)
+            try:
+                img = np.frombuffer(pixels, dtype="<f4").reshape(height, width)
+                labels, elapsed = segment(loaded[name], img, args)
+                stdout.write(("MASK %d %d %f\n" % (width, height, elapsed)).encode("ascii"))
+                stdout.write(labels.tobytes())
+            except Exception as e:
+                stdout.write(("ERROR " + str(e).replace("\n", " ") + "\n").encode("ascii"))
+        elif request[0] == "SEGMENT_SHM":
+            name, path = text.split(" ", 2)[1:]
+            try:
+                magic, width, height, dtype = np.fromfile(path, dtype="<i4", count=4)
+                if magic != SHM_MAGIC or dtype != 0:
+                    raise ValueError("bad shared buffer header")
+                img = np.memmap(path, dtype="<f4", mode="r", offset=16, shape=(height, width))
+                out = np.memmap(path, dtype="<u2", mode="r+", offset=16 + 4 * width * height, shape=(height, width))
+                labels, elapsed = segment(loaded[name], np.array(img), args)
+                out[:] = labels
+                out.flush()
+                del img, out
+                stdout.write(("MASK %d %d %f\n" % (width, height, elapsed)).encode("ascii"))
+            except Exception as e:
+                stdout.write(("ERROR " + str(e).replace("\n", " ") + "\n").encode("ascii"))
+        else:
+            stdout.write(("ERROR unknown request " + request[0] + "\n").encode("ascii"))
+        stdout.flush()
+
+
+if __name__ == "__main__":
+    try:
+        main()
+    except (EOFError, BrokenPipeError):
+        os._exit(0)
@@ -0,0 +1,114 @@
+package DNA_in_bacteria_Tools.Cellpose;
+
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.Assume;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/**
+ * Worker protocol against omnipose_stub_worker.py, which labels pixels above the image mean
+ * Skipped if Python 3 is not installed.
+ */
+public class OmniposeWorkerTest {
+
+    private static final int WIDTH = 8;
+    private static final int HEIGHT = 6;
+    // Two bright squares on a dark background
+    private static final int[][] OBJECTS = {{1, 1}, {5, 3}};
+
+
+    private static ImagePlus image() {
+        float[] pixels = new float[WIDTH*HEIGHT];
+        for (int[] object : OBJECTS) {
+            for (int y = object[1]; y < object[1] + 2; y++)
+                for (int x = object[0]; x < object[0] + 2; x++)
+                    pixels[y*WIDTH + x] = 10;
+        }
+        return new ImagePlus("img", new FloatProcessor(WIDTH, HEIGHT, pixels));
+    }
+
+
+    private static short[] expectedLabels() {
+        short[] labels = new short[WIDTH*HEIGHT];
+        for (int i = 0; i < OBJECTS.length; i++) {
+            for (int y = OBJECTS[i][1]; y < OBJECTS[i][1] + 2; y++)
+                for (int x = OBJECTS[i][0]; x < OBJECTS[i][0] + 2; x++)
+                    labels[y*WIDTH + x] = (short) (i+1);
+        }
+        return labels;
+    }
+
+
+    private static OmniposeWorker start(boolean sharedMemory) {
+        CellposeTaskSettings settings = new CellposeTaskSettings("/models/bact", 1, 18, "");
+        try {
+            return OmniposeWorker.start(settings, Arrays.asList("/models/bact", "/models/hang"), true, sharedMemory, 2);
+        } catch (IOException ex) {
+            Assume.assumeNoException("Python 3 not available", ex);
+            return null;
+        }
+    }
+
+
+    private static void roundTrip(boolean sharedMemory) throws IOException {
+        OmniposeWorker worker = start(sharedMemory);
+        try {
+            assertEquals(sharedMemory, worker.isSharedMemory());
+            assertTrue(worker.ping());
+            // Twice, the shared buffer is reused
+            for (int i = 0; i < 2; i++) {
+                ImagePlus mask = worker.segment(image(), "bact");
+                assertEquals(16, mask.getBitDepth());
+                assertArrayEquals(expectedLabels(), (short[]) mask.getProcessor().getPixels());
+                assertTrue(mask.getProperty(OmniposeWorker.INFERENCE_TIME) instanceof Double);
+            }
+            try {
+                worker.segment(image(), "dna");
+                fail("Model not loaded by the worker");
+            } catch (IOException ex) {
+                assertTrue(ex.getMessage(), ex.getMessage().contains("ERROR"));
+            }
+            assertTrue(worker.ping());
+        } finally {
+            worker.close();
+        }
+        // QUIT was answered, the worker exited
+        assertFalse(worker.ping());
+    }
+
+
+    @Test
+    public void segmentThroughPipe() throws IOException {
+        roundTrip(false);
+    }
+
+
+    @Test
+    public void segmentThroughSharedMemory() throws IOException {
+        roundTrip(true);
+    }
+
+
+    @Test(timeout = 20000)
+    public void killedIfNoReply() throws IOException {
+        OmniposeWorker worker = start(true);
+        try {
+            // The stub never replies for the hang model
+            worker.segment(image(), "hang");
+            fail("Worker replied");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("did not reply"));
+        } finally {
+            worker.close();
+        }
+        assertFalse(worker.ping());
+    }
+}
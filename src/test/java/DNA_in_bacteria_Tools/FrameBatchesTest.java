@@ -0,0 +1,89 @@
+package DNA_in_bacteria_Tools;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Batches of frames between the open and segmentation stages, with a shared memory budget
+ */
+public class FrameBatchesTest {
+
+    /**
+     * Open stage: reserve memory, then add each frame
+     */
+    private static Thread open(FrameBatches batches, MemoryBudget budget, long frameBytes, int nbFrames, AtomicReference<Throwable> error) {
+        Thread open = new Thread(() -> {
+            try {
+                for (int t = 0; t < nbFrames; t++) {
+                    batches.reserve(budget, frameBytes);
+                    batches.put(new Frame("file", 0, 0, "series", t));
+                }
+                batches.end();
+            } catch (Throwable ex) {
+                error.set(ex);
+            }
+        });
+        open.start();
+        return open;
+    }
+
+
+    /**
+     * Segmentation and measurement stages: memory of the frames of a batch is given back once it is processed
+     * @return sizes of the batches
+     */
+    private static ArrayList<Integer> segment(FrameBatches batches, MemoryBudget budget, long frameBytes) throws InterruptedException {
+        ArrayList<Integer> sizes = new ArrayList<>();
+        int time = 0;
+        for (ArrayList<Frame> batch = batches.next(); batch != null; batch = batches.next()) {
+            for (Frame frame : batch)
+                assertEquals(time++, frame.time);
+            sizes.add(batch.size());
+            budget.release(batch.size()*frameBytes);
+        }
+        return sizes;
+    }
+
+
+    @Test(timeout = 10000)
+    public void partialBatchesWhenBudgetIsFull() throws Exception {
+        MemoryBudget budget = new MemoryBudget(0.5);
+        // Two frames fit in the budget, a batch holds five
+        long frameBytes = (long) (budget.getCapacity() / 2.5);
+        FrameBatches batches = new FrameBatches(2, 5);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread open = open(batches, budget, frameBytes, 12, error);
+
+        ArrayList<Integer> sizes = segment(batches, budget, frameBytes);
+        open.join();
+        assertNull(error.get());
+        int nbFrames = 0;
+        for (int size : sizes) {
+            assertTrue("Batch of " + size + " frames", size >= 1 && size <= 2);
+            nbFrames += size;
+        }
+        assertEquals(12, nbFrames);
+    }
+
+
+    @Test(timeout = 10000)
+    public void fullBatchesWhenBudgetIsLarge() throws Exception {
+        MemoryBudget budget = new MemoryBudget(0.5);
+        FrameBatches batches = new FrameBatches(20, 5);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread open = open(batches, budget, 1, 12, error);
+
+        ArrayList<Integer> sizes = segment(batches, budget, 1);
+        open.join();
+        assertNull(error.get());
+        assertEquals(3, sizes.size());
+        assertEquals(5, (int) sizes.get(0));
+        assertEquals(5, (int) sizes.get(1));
+        assertEquals(2, (int) sizes.get(2));
+    }
+}